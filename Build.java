@@ -19,6 +19,7 @@ import javassist.ClassPool;
 import javassist.bytecode.CodeIterator;
 import javassist.bytecode.Opcode;
 import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
 import javassist.bytecode.Bytecode;
 
 public class Build {
@@ -36,6 +37,7 @@ public class Build {
             compile();
             buildServer();
             buildClient();
+            buildHost();
             return;
 
         default:
@@ -58,6 +60,15 @@ public class Build {
             buildClient();
             break;
 
+        case "host":
+            compile();
+            buildHost();
+            break;
+
+        case "cds":
+            buildCds();
+            break;
+
         default:
             System.err.println("error: incorrect argument: " + args[0]);
             System.exit(1);
@@ -96,6 +107,13 @@ public class Build {
                 StandardCopyOption.REPLACE_EXISTING
             );
         }
+
+        // Kept for each version, so a host can load several of them
+        Files.copy(
+            Paths.get("build/bin/server_launcher.jar"),
+            Paths.get("build/bin/server_launcher-" + versionDirPath.getFileName() + ".jar"),
+            StandardCopyOption.REPLACE_EXISTING
+        );
     }
 
     static void buildClient() throws Exception {
@@ -107,6 +125,159 @@ public class Build {
         );
     }
 
+    // Loads the server launchers of several versions in one JVM, see
+    // `host.Main`. The servers get `utils` from it, so it is the same
+    // for all of them
+    static void buildHost() throws Exception {
+        info("building host...");
+        runCmd(
+            "jar", "cfe", "build/bin/host.jar", "host.Main",
+            "-C", "build", "host",
+            "-C", "build", "utils"
+        );
+    }
+
+    // Class data sharing archives for both jars, dumped at the end of a
+    // training run of each. A JVM started with the archive maps the classes
+    // the training run loaded instead of loading and verifying them again:
+    //     java -XX:SharedArchiveFile=build/bin/client.jsa -jar build/bin/client.jar ...
+    //
+    // The server is trained headless, so it needs a version that supports
+    // it. An archive only works with the JDK that made it and the jar it
+    // was made from, so it has to be made again after every build. The JVM
+    // ignores an archive that does not fit with a warning
+    static void buildCds() throws Exception {
+        var cdsDir = Paths.get("build/cds").toAbsolutePath();
+        Files.createDirectories(cdsDir);
+        Files.writeString(
+            cdsDir.resolve("train.mcfunction"),
+            String.join("\n",
+                "say training",
+                "execute as @a at @s run tp @s ~ ~1 ~",
+                "give @p minecraft:diamond 1",
+                "scoreboard players add @s points 1",
+                "not_a_command",
+                ""
+            )
+        );
+
+        var clientArchive = Paths.get("build/bin/client.jsa").toAbsolutePath();
+        var serverArchive = Paths.get("build/bin/server.jsa").toAbsolutePath();
+        Files.deleteIfExists(clientArchive);
+        Files.deleteIfExists(serverArchive);
+
+        info("measuring startup without archives...");
+        var serverBefore = timeServer(cdsDir, List.of());
+        var server = startServer(cdsDir, List.of());
+        var clientBefore = timeClient(cdsDir, List.of());
+        stopServer(server);
+
+        info("training...");
+        server = startServer(cdsDir, List.of("-XX:ArchiveClassesAtExit=" + serverArchive));
+        runClient(cdsDir, List.of("-XX:ArchiveClassesAtExit=" + clientArchive));
+        stopServer(server);
+
+        info("measuring startup with archives...");
+        var serverAfter = timeServer(cdsDir, List.of("-XX:SharedArchiveFile=" + serverArchive));
+        server = startServer(cdsDir, List.of("-XX:SharedArchiveFile=" + serverArchive));
+        var clientAfter = timeClient(cdsDir, List.of("-XX:SharedArchiveFile=" + clientArchive));
+        stopServer(server);
+
+        info("server ready after " + serverBefore + " ms, with archive " + serverAfter + " ms");
+        info("client runs in " + clientBefore + " ms, with archive " + clientAfter + " ms");
+    }
+
+    static record TrainingServer(Process process, long startupMillis) {}
+
+    // Headless, on its own socket and without the check cache, so the
+    // client does the same work every run. Ready when it writes the
+    // readiness marker next to the socket, after its warm-up
+    static TrainingServer startServer(Path cdsDir, List<String> jvmArgs) throws Exception {
+        var socket = cdsDir.resolve("train.sock");
+        var ready = cdsDir.resolve("train.sock.ready");
+        Files.deleteIfExists(socket);
+        Files.deleteIfExists(ready);
+
+        var cmd = new ArrayList<String>();
+        cmd.add("java");
+        cmd.addAll(jvmArgs);
+        cmd.add("-Dmcsc.headless=true");
+        cmd.add("-Dmcsc.socket=" + socket);
+        cmd.add("-Dmcsc.cache=");
+        cmd.add("-jar");
+        cmd.add(Paths.get("build/bin/server_launcher.jar").toAbsolutePath().toString());
+        cmd.add("nogui");
+
+        var start = System.nanoTime();
+        var process = new ProcessBuilder(cmd)
+            .directory(cdsDir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(cdsDir.resolve("server.log").toFile())
+            .start();
+        while (!Files.exists(ready)) {
+            if (!process.isAlive()) {
+                throw new RuntimeException(
+                    "The training server stopped, see " + cdsDir.resolve("server.log")
+                );
+            }
+            Thread.sleep(10);
+        }
+
+        return new TrainingServer(process, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // The archive is dumped when the JVM exits, which may take a while
+    static void stopServer(TrainingServer server) throws Exception {
+        server.process().destroy();
+        server.process().waitFor();
+    }
+
+    static void runClient(Path cdsDir, List<String> jvmArgs) throws Exception {
+        var cmd = new ArrayList<String>();
+        cmd.add("java");
+        cmd.addAll(jvmArgs);
+        cmd.add("-Dmcsc.socket=" + cdsDir.resolve("train.sock"));
+        cmd.add("-jar");
+        cmd.add(Paths.get("build/bin/client.jar").toAbsolutePath().toString());
+        cmd.add("train.mcfunction");
+
+        // `train.mcfunction` has errors on purpose, so the exit code is
+        // not checked
+        new ProcessBuilder(cmd)
+            .directory(cdsDir.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start()
+            .waitFor();
+    }
+
+    // Median of a few starts without the warm-up, which takes as long as
+    // it needs to and would hide the difference
+    static long timeServer(Path cdsDir, List<String> jvmArgs) throws Exception {
+        final int runs = 3;
+        var args = new ArrayList<>(jvmArgs);
+        args.add("-Dmcsc.warmup=0");
+        var millis = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            var server = startServer(cdsDir, args);
+            millis[i] = server.startupMillis();
+            stopServer(server);
+        }
+        Arrays.sort(millis);
+        return millis[runs / 2];
+    }
+
+    // Average of a few runs, the first one is not counted
+    static long timeClient(Path cdsDir, List<String> jvmArgs) throws Exception {
+        final int runs = 5;
+        runClient(cdsDir, jvmArgs);
+        var start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            runClient(cdsDir, jvmArgs);
+        }
+        return (System.nanoTime() - start) / 1_000_000 / runs;
+    }
+
     static void compile() throws Exception {
         info("compiling...");
 
@@ -142,9 +313,19 @@ public class Build {
             copyDirectory(Paths.get("build/utils"), root);
 
             injectCallToOurServer(serverJarPath, serverJarFs);
+            redirectLogs(serverJarFs);
         }
     }
 
+    // `logs/` becomes `${sys:mcsc.logs:-logs}/`, so every version of a
+    // host writes its own `latest.log`, see `host.Main.start()`
+    static void redirectLogs(FileSystem serverJarFs) throws Exception {
+        var config = serverJarFs.getPath("log4j2.xml");
+        if (!Files.exists(config)) return;
+        var xml = Files.readString(config);
+        Files.writeString(config, xml.replace("\"logs/", "\"${sys:mcsc.logs:-logs}/"));
+    }
+
     static void injectCallToOurServer(String serverJarPath, FileSystem serverJarFs) throws Exception {
         var pool = ClassPool.getDefault();
         pool.appendClassPath(serverJarPath);
@@ -166,6 +347,9 @@ public class Build {
 
         methodInfo.setCodeAttribute(codeIter.get());
 
+        injectHeadlessBootstrap(methodInfo, cp);
+        injectServerFiles(methodInfo, cp);
+
         var tmpBuf = new ByteArrayOutputStream(cc.toBytecode().length);
         cf.write(new DataOutputStream(tmpBuf));
 
@@ -175,6 +359,95 @@ public class Build {
         );
     }
 
+    // Lets `-Dmcsc.headless=true` skip the dedicated server: the EULA check
+    // is routed through `server.Main.hasAgreedToEula()` and
+    // `server.Main.initHeadless()` is called right after the `WorldStem`
+    // (registries, datapacks and commands) is stored, before any level is
+    // loaded. Versions without a `WorldStem` are built without it
+    static void injectHeadlessBootstrap(MethodInfo methodInfo, ConstPool cp) throws Exception {
+        var codeIter = methodInfo.getCodeAttribute().iterator();
+        var eulaCallIdxs = new ArrayList<Integer>();
+        var worldStemStoreIdx = -1;
+        while (codeIter.hasNext()) {
+            int inst_begin_idx = codeIter.next();
+            int opcode = codeIter.byteAt(inst_begin_idx);
+
+            if (opcode == Opcode.INVOKEVIRTUAL) {
+                var methodRef = codeIter.u16bitAt(inst_begin_idx + 1);
+                if (cp.getMethodrefClassName(methodRef).equals("net.minecraft.server.Eula") &&
+                    cp.getMethodrefName(methodRef).equals("hasAgreedToEULA"))
+                    eulaCallIdxs.add(inst_begin_idx);
+            } else if (opcode == Opcode.CHECKCAST && worldStemStoreIdx < 0) {
+                var className = cp.getClassInfo(codeIter.u16bitAt(inst_begin_idx + 1));
+                if (!className.equals("net.minecraft.server.WorldStem") || !codeIter.hasNext())
+                    continue;
+
+                inst_begin_idx = codeIter.next();
+                if (codeIter.byteAt(inst_begin_idx) == Opcode.ASTORE)
+                    worldStemStoreIdx = inst_begin_idx;
+            }
+        }
+
+        if (eulaCallIdxs.isEmpty() || worldStemStoreIdx < 0) {
+            info("this version does not support the headless bootstrap");
+            return;
+        }
+
+        // Same size and stack effect as the `invokevirtual`,
+        // so it is replaced in place
+        var hasAgreedToEula = cp.addMethodrefInfo(
+            cp.addClassInfo("server.Main"),
+            "hasAgreedToEula",
+            "(Ljava/lang/Object;)Z"
+        );
+        for (var idx : eulaCallIdxs) {
+            codeIter.writeByte(Opcode.INVOKESTATIC, idx);
+            codeIter.write16bit(hasAgreedToEula, idx + 1);
+        }
+
+        var newCode = new Bytecode(cp);
+        newCode.addAload(codeIter.byteAt(worldStemStoreIdx + 1));
+        newCode.addInvokestatic("server.Main", "initHeadless", "(Ljava/lang/Object;)V");
+        // After the 2-byte `astore`
+        codeIter.move(worldStemStoreIdx + 2);
+        codeIter.insert(newCode.get());
+
+        methodInfo.setCodeAttribute(codeIter.get());
+    }
+
+    // Every name in `SERVER_FILES` the main method loads is passed through
+    // `server.Main.serverFile()`, which puts them in the version's own
+    // directory when hosted
+    static final List<String> SERVER_FILES = List.of("server.properties", "eula.txt");
+
+    static void injectServerFiles(MethodInfo methodInfo, ConstPool cp) throws Exception {
+        var codeIter = methodInfo.getCodeAttribute().iterator();
+        var afterLdcIdxs = new ArrayList<Integer>();
+        while (codeIter.hasNext()) {
+            int inst_begin_idx = codeIter.next();
+            int opcode = codeIter.byteAt(inst_begin_idx);
+
+            int constIdx;
+            if (opcode == Opcode.LDC) constIdx = codeIter.byteAt(inst_begin_idx + 1);
+            else if (opcode == Opcode.LDC_W) constIdx = codeIter.u16bitAt(inst_begin_idx + 1);
+            else continue;
+
+            if (cp.getTag(constIdx) == ConstPool.CONST_String &&
+                SERVER_FILES.contains(cp.getStringInfo(constIdx)))
+                afterLdcIdxs.add(inst_begin_idx + (opcode == Opcode.LDC ? 2 : 3));
+        }
+
+        // `String` in, `String` out, so the stack stays the same. From the
+        // end, so the indices of the remaining ones stay valid
+        for (int i = afterLdcIdxs.size() - 1; i >= 0; i--) {
+            var newCode = new Bytecode(cp);
+            newCode.addInvokestatic("server.Main", "serverFile", "(Ljava/lang/String;)Ljava/lang/String;");
+            codeIter.insertAt(afterLdcIdxs.get(i), newCode.get());
+        }
+
+        methodInfo.setCodeAttribute(codeIter.get());
+    }
+
     static String getJarMainClassName(FileSystem jarFs) throws Exception {
         var manifestStream = Files.newInputStream(jarFs.getPath("META-INF/MANIFEST.MF"));
         var manifest = new Manifest(manifestStream);
@@ -1,44 +1,394 @@
 package client;
 
-import utils.FilePipe;
+import utils.SocketPipe;
 
+import java.io.BufferedInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Files;
 
 public class Main {
+    // With `-format jsonl` stdout gets nothing but the JSON lines, the
+    // summary goes to stderr
+    static boolean jsonl = false;
+
     public static void main(String[] args) throws Throwable {
-        if (args.length == 0) {
-            System.out.println("args: <file1> <file2>...");
+        long timeoutMillis = 0;
+        var header = new StringBuilder("check");
+        String cancelId = null;
+        String id = null;
+        var stats = false;
+        var benchRounds = 0;
+        String watchDir = null;
+        var lsp = false;
+        String complete = null;
+        String cursor = null;
+        var version = "";
+        List<Path> endpoints = null;
+        var files = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-help":
+                help();
+                return;
+
+            case "-timeout":
+                timeoutMillis = Long.parseLong(argValue(args, ++i));
+                break;
+
+            case "-id":
+                id = argValue(args, ++i);
+                break;
+
+            case "-format":
+                var format = argValue(args, ++i);
+                if (!format.equals("text") && !format.equals("jsonl")) {
+                    System.err.println("error: unknown format '" + format + "'");
+                    System.exit(1);
+                }
+                jsonl = format.equals("jsonl");
+                header.append(" format=" + format);
+                break;
+
+            case "-deadline":
+                header.append(" deadline=" + Long.parseLong(argValue(args, ++i)));
+                break;
+
+            case "-cancel":
+                cancelId = argValue(args, ++i);
+                break;
+
+            case "-stats":
+                stats = true;
+                break;
+
+            case "-bench":
+                benchRounds = Integer.parseInt(argValue(args, ++i));
+                break;
+
+            case "-watch":
+                watchDir = argValue(args, ++i);
+                break;
+
+            case "-lsp":
+                lsp = true;
+                break;
+
+            case "-complete":
+                complete = argValue(args, ++i);
+                break;
+
+            case "-cursor":
+                cursor = String.valueOf(Integer.parseInt(argValue(args, ++i)));
+                break;
+
+            case "-endpoints":
+                endpoints = new ArrayList<>();
+                for (var endpoint : argValue(args, ++i).split(",")) endpoints.add(Paths.get(endpoint));
+                break;
+
+            // Picks the version on a host, see `host.Main`
+            case "-version":
+                version = " version=" + argValue(args, ++i);
+                break;
+
+            default:
+                files.add(args[i]);
+            }
+        }
+
+        if (files.isEmpty() && cancelId == null && !stats && watchDir == null && !lsp && complete == null) {
+            help();
             return;
         }
 
-        for (int i = 0; i < args.length; i++) {
-            var relativePath = Paths.get(args[i]);
+        if (watchDir != null && !Files.isDirectory(Paths.get(watchDir))) {
+            System.err.println("error: '" + watchDir + "' is not a directory");
+            return;
+        }
+
+        for (var file : files) {
+            var relativePath = Paths.get(file);
             if (!Files.exists(relativePath)) {
-                System.err.println("error: '" + args[i] + "' does not exist");
+                System.err.println("error: '" + file + "' does not exist");
+                return;
+            }
+
+            // Datapacks and `.zip` datapacks are walked by the server
+            if (Files.isDirectory(relativePath) && !Files.isDirectory(relativePath.resolve("data"))) {
+                System.err.println("error: '" + file + "' is not a datapack (no 'data' directory)");
                 return;
             }
         }
 
-        try (var pipe = new FilePipe()) {
-            try (var lock = pipe.lockForWrite()) {
+        var sharded = endpoints != null
+            && cancelId == null && !stats && benchRounds == 0
+            && watchDir == null && !lsp && complete == null;
+        if (sharded) {
+            var shards = new Shards(
+                Shards.units(files),
+                header.toString(),
+                id,
+                version,
+                jsonl,
+                Paths.get("").toAbsolutePath().toString(),
+                timeoutMillis
+            );
+            done(null, shards.check(endpoints));
+            return;
+        }
+
+        // Other requests go to the first endpoint
+        if (id != null) header.append(" id=" + id);
+        var socketPath = endpoints != null ? endpoints.get(0) : SocketPipe.path();
+        try (var pipe = SocketPipe.connect(socketPath, timeoutMillis)) {
+            pipe.setTimeout(timeoutMillis);
+
+            if (lsp) {
+                pipe.setTimeout(0);
+                pipe.write("lsp" + version);
+                lsp(pipe);
+                return;
+            } else if (complete != null) {
+                pipe.write(
+                    "complete" + (cursor == null ? "" : " cursor=" + cursor) + version + "\n" +
+                    complete
+                );
+            } else if (cancelId != null) {
+                pipe.write("cancel id=" + cancelId + version);
+            } else if (stats) {
+                pipe.write("stats" + version);
+            } else if (watchDir != null) {
+                // The server answers until the connection is closed,
+                // so only connecting is limited by `-timeout`
+                pipe.setTimeout(0);
+                pipe.write(
+                    "watch" + version + "\n" +
+                    Paths.get("").toAbsolutePath().toString() + "\n" +
+                    watchDir
+                );
+            } else if (benchRounds > 0) {
+                pipe.write(
+                    "bench rounds=" + benchRounds + version + "\n" +
+                    Paths.get("").toAbsolutePath().toString() + "\n" +
+                    String.join("\n", files)
+                );
+            } else {
                 // protocol:
+                //     check [id=<id>] [deadline=<ms>] [format=<format>] [version=<version>]
                 //     <cwd>
-                //     <file-path-relative-to-cwd>
-                //     <file-path-relative-to-cwd>
+                //     <file-datapack-or-zip-relative-to-cwd>
+                //     <file-datapack-or-zip-relative-to-cwd>
                 //     ...
-                pipe.write(Paths.get("").toAbsolutePath().toString() + "\n");
-                pipe.write(String.join("\n", args));
+                pipe.write(
+                    header + version + "\n" +
+                    Paths.get("").toAbsolutePath().toString() + "\n" +
+                    String.join("\n", files)
+                );
+            }
+
+            // Diagnostics are printed as they arrive until the `done` frame
+            while (true) {
+                var frame = pipe.read();
+                if (frame == null) {
+                    System.err.println("error: server closed the connection");
+                    System.exit(1);
+                }
+
+                var newline = frame.indexOf('\n');
+                var head = newline < 0 ? frame : frame.substring(0, newline);
+                var tag = head.split(" ", 2)[0];
+                switch (tag) {
+                case "diagnostics":
+                case "stats":
+                case "completions":
+                    System.out.print(frame.substring(newline + 1));
+                    System.out.flush();
+                    break;
+
+                case "done":
+                    done(cancelId, head);
+                    return;
+
+                // Sent by `-watch` after every batch of changes
+                case "checked":
+                    done(null, head);
+                    break;
+
+                case "clear":
+                    System.out.println(head.substring(tag.length()).trim() + ": no errors");
+                    break;
+
+                case "error":
+                    System.err.println("error: " + head.substring(tag.length()).trim());
+                    System.exit(1);
+
+                default:
+                    System.err.println("error: unexpected response: " + head);
+                    System.exit(1);
+                }
             }
+        } catch (SocketException | NoSuchFileException e) {
+            System.err.println("error: could not connect to " + socketPath + ": is the server running?");
+            System.exit(1);
+        } catch (SocketTimeoutException e) {
+            System.err.println("error: timed out waiting for the server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
 
-            // TODO: Timeout? If server is not running it will go infinitely
-            var size = pipe.channel.size();
-            while (pipe.channel.size() == size) {}
+    // Bridges the editor on stdio to the server: messages framed by
+    // `Content-Length` headers are sent as one frame each and frames from
+    // the server are written back with the headers
+    static void lsp(SocketPipe pipe) throws Exception {
+        var output = new Thread(() -> {
+            try {
+                String frame;
+                while ((frame = pipe.read()) != null) {
+                    var body = frame.getBytes(StandardCharsets.UTF_8);
+                    System.out.write(
+                        ("Content-Length: " + body.length + "\r\n\r\n")
+                            .getBytes(StandardCharsets.US_ASCII)
+                    );
+                    System.out.write(body);
+                    System.out.flush();
+                }
+            } catch (Exception e) {
+                System.err.println("error: " + e);
+            }
+            System.exit(0);
+        });
+        output.setDaemon(true);
+        output.start();
 
-            try (var lock = pipe.lockForRead()) {
-                System.out.println(pipe.read());
+        var in = new BufferedInputStream(System.in);
+        while (true) {
+            var length = -1;
+            String header;
+            while (!(header = readHeader(in)).isEmpty()) {
+                var colon = header.indexOf(':');
+                if (colon > 0 && header.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                    length = Integer.parseInt(header.substring(colon + 1).trim());
+                }
+            }
+            if (length < 0) {
+                System.err.println("error: LSP message without Content-Length");
+                System.exit(1);
             }
+
+            var body = in.readNBytes(length);
+            if (body.length < length) break;
+            pipe.write(new String(body, StandardCharsets.UTF_8));
+        }
+
+        // The editor went away without `exit`
+        System.exit(0);
+    }
+
+    // A header line without its `\r\n`, the empty line ends the headers
+    static String readHeader(BufferedInputStream in) throws Exception {
+        var line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) System.exit(0);
+            if (c != '\r') line.append((char) c);
         }
+        return line.toString();
+    }
+
+    // done status=<status> files=<n> failed=<n> errors=<n>
+    static void done(String cancelId, String head) {
+        var summary = new HashMap<String, String>();
+        for (var option : head.split(" ")) {
+            var eq = option.indexOf('=');
+            if (eq > 0) summary.put(option.substring(0, eq), option.substring(eq + 1));
+        }
+
+        if (cancelId != null) {
+            System.out.println("cancelled " + cancelId);
+            return;
+        }
+
+        if (!summary.containsKey("files")) return;
+
+        var status = summary.getOrDefault("status", "");
+        var out = jsonl ? System.err : System.out;
+
+        switch (status) {
+        case "success":
+            out.println("success");
+            break;
+
+        case "failed":
+            System.err.println(
+                summary.get("errors") + " error(s) in " +
+                summary.get("failed") + " of " +
+                summary.get("files") + " file(s)"
+            );
+            break;
+
+        default:
+            out.println(status.replace('-', ' '));
+        }
+    }
+
+    static String argValue(String[] args, int i) {
+        if (i == args.length) {
+            System.err.println("error: " + args[i - 1] + " expects a value");
+            System.exit(1);
+        }
+        return args[i];
+    }
+
+    static void help() {
+        System.out.println("""
+            args: [<options>] <file-or-datapack1> <file-or-datapack2>...
+                  -cancel <id>
+                  -stats
+                  -bench <rounds> <file1> <file2>...
+                  -watch <dir>
+                  -lsp
+                  -complete <command> [-cursor <n>]
+            options:
+                -help               print this help
+                -id <id>            name the check, so it can be cancelled;
+                                    a new check with the same id cancels
+                                    the previous one
+                -deadline <ms>      stop checking after <ms> milliseconds
+                                    and print what was checked so far
+                -format <format>    `text` (default) or `jsonl`: one JSON
+                                    object per error with its file, line,
+                                    column, message and command
+                -cancel <id>        cancel the check named <id>
+                -stats              print the server's cache statistics and latencies
+                -bench <rounds>     check the commands of the files <rounds>
+                                    times and print the time and the bytes
+                                    allocated per command
+                -watch <dir>        check the .mcfunction files in <dir>,
+                                    then check them again whenever they
+                                    change until interrupted
+                -lsp                run as a language server on stdio for
+                                    editors, backed by the running server
+                -complete <command> print the completions of <command> as
+                                    `<start> <end> <text>` lines
+                -cursor <n>         complete at <n> instead of at the end
+                -version <version>  send the request to the checker of
+                                    <version> on a multi-version host
+                -endpoints <s1,s2>  split the check across the servers on
+                                    the sockets s1, s2, ... by line count;
+                                    other requests go to s1
+                -timeout <ms>       how long to wait for the server to start
+                                    and to answer, 0 (default) fails at once
+                                    if it is not running and waits for the
+                                    answer forever"""
+        );
     }
 }
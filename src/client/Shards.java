@@ -0,0 +1,468 @@
+package client;
+
+import utils.Json;
+import utils.SocketPipe;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+// A check split across several servers, `-endpoints` in the client.
+//
+// The files are split into units: a file, every function file of a
+// datapack directory, or a whole `.zip`. Units are dealt out to the
+// endpoints by their line count, largest first to the least loaded
+// endpoint, and every endpoint is sent one `check` with its units. The
+// diagnostics are printed in the order of the units, so the output is the
+// same as from a single server.
+//
+// An endpoint that fails or times out is dropped and its unchecked units
+// are sent to another one. A check that takes `STRAGGLER_FACTOR` times as
+// long as its lines should, by the speed of the checks that finished, has
+// its unchecked units sent to the next idle endpoint too, and whichever
+// finishes a unit first is used. Nothing is sent twice before the first
+// check finishes.
+//
+// Every check is named `<id>.<n>`, after `-id` or the process. A check
+// whose remaining units were all finished by another endpoint is
+// cancelled with that name, so its server stops working on them
+class Shards {
+    static final double STRAGGLER_FACTOR = 2.0;
+
+    // Checks shorter than this are never sent twice
+    static final long STRAGGLER_MIN_MILLIS = 500;
+
+    static final String EXTENSION = ".mcfunction";
+
+    // Diagnostics of an archive's files are named `<archive>!/<entry>`
+    static record Unit(String path, boolean archive, int files, long lines) {}
+
+    static final class Task {
+        final String        id;
+        final List<Integer> units;
+        final long          lines;
+        Path                endpoint;
+        long                start;
+        long                end;
+        // Index into `units` of the unit being received, its diagnostics
+        // so far and the number of its files with errors
+        int                 next = 0;
+        ArrayList<String>   records = new ArrayList<>();
+        int                 failed = 0;
+        String              file = null;
+        boolean             resent = false;
+        boolean             cancelled = false;
+
+        Task(String id, List<Integer> units, long lines) {
+            this.id = id;
+            this.units = units;
+            this.lines = lines;
+        }
+    }
+
+    final List<Unit>   units;
+    final String       header;
+    final String       id;
+    final String       version;
+    final String       cwd;
+    final boolean      jsonl;
+    final long         timeoutMillis;
+
+    // Guarded by `this`
+    final List<String>[] results;
+    final ArrayDeque<Integer> orphans = new ArrayDeque<>();
+    final ArrayList<Task> running = new ArrayList<>();
+    int  completed = 0;
+    int  printed = 0;
+    int  alive;
+    long finishedLines = 0;
+    long finishedMillis = 0;
+    int  failed = 0;
+    int  errors = 0;
+    int  tasks = 0;
+    String stopStatus = null;
+
+    @SuppressWarnings("unchecked")
+    Shards(
+        List<Unit> units,
+        String     header,
+        String     id,
+        String     version,
+        boolean    jsonl,
+        String     cwd,
+        long       timeoutMillis
+    ) {
+        this.units = units;
+        this.header = header;
+        this.id = id != null ? id : "mcsc-" + ProcessHandle.current().pid();
+        this.version = version;
+        this.jsonl = jsonl;
+        this.cwd = cwd;
+        this.timeoutMillis = timeoutMillis;
+        this.results = new List[units.size()];
+    }
+
+    // Prints the diagnostics and returns the `done` line of the whole check
+    String check(List<Path> endpoints) throws Exception {
+        var shards = partition(endpoints.size());
+        synchronized (this) {
+            this.alive = endpoints.size();
+        }
+
+        for (int i = 0; i < endpoints.size(); i++) {
+            var endpoint = endpoints.get(i);
+            var task = shards.get(i);
+            var thread = new Thread(() -> serve(endpoint, task), "mcsc-shard " + endpoint);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        synchronized (this) {
+            while (this.completed < this.units.size() && this.alive > 0) wait();
+            if (this.completed < this.units.size()) {
+                System.err.println("error: every endpoint failed");
+                System.exit(1);
+            }
+
+            var files = this.units.stream().mapToInt(Unit::files).sum();
+            var status = this.stopStatus != null
+                ? this.stopStatus
+                : this.errors == 0 ? "success" : "failed";
+            return String.format(
+                "done status=%s files=%d failed=%d errors=%d",
+                status, files, this.failed, this.errors
+            );
+        }
+    }
+
+    // Largest units first, each to the endpoint with the fewest lines
+    List<Task> partition(int count) {
+        var order = new ArrayList<Integer>();
+        for (int i = 0; i < this.units.size(); i++) order.add(i);
+        order.sort(Comparator.comparingLong((Integer i) -> this.units.get(i).lines()).reversed());
+
+        var shards = new ArrayList<List<Integer>>();
+        var lines = new long[count];
+        for (int i = 0; i < count; i++) shards.add(new ArrayList<>());
+        for (var unit : order) {
+            var least = 0;
+            for (int i = 1; i < count; i++) {
+                if (lines[i] < lines[least]) least = i;
+            }
+            shards.get(least).add(unit);
+            lines[least] += this.units.get(unit).lines();
+        }
+
+        var tasks = new ArrayList<Task>();
+        for (int i = 0; i < count; i++) {
+            shards.get(i).sort(null);
+            tasks.add(newTask(shards.get(i), lines[i]));
+        }
+        return tasks;
+    }
+
+    synchronized Task newTask(List<Integer> units, long lines) {
+        return new Task(this.id + "." + this.tasks++, units, lines);
+    }
+
+    // Runs tasks on the endpoint until every unit is checked or the
+    // endpoint fails
+    void serve(Path endpoint, Task task) {
+        try {
+            while (task != null) {
+                if (!task.units.isEmpty()) run(endpoint, task);
+                task = nextTask();
+            }
+        } catch (IOException e) {
+            // Also a connection that was refused or timed out
+            System.err.println("warning: dropping " + endpoint + ": " + e.getMessage());
+            synchronized (this) {
+                this.running.remove(task);
+                for (int i = task.next; i < task.units.size(); i++) {
+                    this.orphans.add(task.units.get(i));
+                }
+                this.alive -= 1;
+                notifyAll();
+            }
+        } catch (Exception e) {
+            System.err.println("error: " + e);
+            System.exit(1);
+        }
+    }
+
+    void run(Path endpoint, Task task) throws Exception {
+        synchronized (this) {
+            task.endpoint = endpoint;
+            task.start = System.nanoTime();
+            this.running.add(task);
+        }
+
+        try (var pipe = SocketPipe.connect(endpoint, this.timeoutMillis)) {
+            pipe.setTimeout(this.timeoutMillis);
+
+            var request = new StringBuilder(this.header)
+                .append(" id=").append(task.id)
+                .append(this.version)
+                .append('\n').append(this.cwd);
+            for (var unit : task.units) request.append('\n').append(this.units.get(unit).path());
+            pipe.write(request.toString());
+
+            while (true) {
+                var frame = pipe.read();
+                if (frame == null) throw new SocketException("the server closed the connection");
+
+                var newline = frame.indexOf('\n');
+                var head = newline < 0 ? frame : frame.substring(0, newline);
+                var tag = head.split(" ", 2)[0];
+                switch (tag) {
+                case "diagnostics":
+                    var body = frame.substring(newline + 1);
+                    if (this.jsonl) {
+                        // Lines of several files
+                        for (var line : body.split("\n")) {
+                            var file = ((Map<?, ?>) Json.parse(line)).get("file");
+                            receive(task, line + "\n", (String) file);
+                        }
+                    } else {
+                        receive(task, body, null);
+                    }
+                    break;
+
+                case "done":
+                    while (task.next < task.units.size()) complete(task);
+                    finish(task, head);
+                    return;
+
+                case "error":
+                    System.err.println("error: " + endpoint + ": " + head.substring(tag.length()).trim());
+                    System.exit(1);
+
+                default:
+                    System.err.println("error: unexpected response from " + endpoint + ": " + head);
+                    System.exit(1);
+                }
+            }
+        }
+    }
+
+    // A record is a text frame, which holds the diagnostics of one file,
+    // or a JSON line, which names its file. Units without errors send
+    // nothing, so a unit is complete once a later one shows up
+    void receive(Task task, String record, String file) throws IOException {
+        while (task.next < task.units.size() && !owns(this.units.get(task.units.get(task.next)), record, file)) {
+            complete(task);
+        }
+        if (task.next == task.units.size()) {
+            throw new IOException("unexpected diagnostics: " + record.lines().findFirst().orElse(""));
+        }
+
+        if (file == null || !file.equals(task.file)) task.failed += 1;
+        task.file = file;
+        task.records.add(record);
+    }
+
+    boolean owns(Unit unit, String record, String file) {
+        if (this.jsonl) {
+            return file.equals(unit.path()) || unit.archive() && file.startsWith(unit.path() + "!/");
+        }
+        return record.startsWith(unit.path() + ":") || unit.archive() && record.startsWith(unit.path() + "!/");
+    }
+
+    // The first result of a unit wins, results of a unit that was sent
+    // twice are dropped
+    synchronized void complete(Task task) {
+        var unit = task.units.get(task.next++);
+        var records = task.records;
+        var failed = task.failed;
+        task.records = new ArrayList<>();
+        task.failed = 0;
+        task.file = null;
+        if (this.results[unit] != null) return;
+
+        this.results[unit] = records;
+        this.completed += 1;
+        this.failed += failed;
+        for (var record : records) {
+            if (this.jsonl) {
+                this.errors += 1;
+                continue;
+            }
+            // Lines with the command of an error are indented
+            for (var line : record.split("\n")) {
+                if (!line.startsWith("    ")) this.errors += 1;
+            }
+        }
+
+        while (this.printed < this.results.length && this.results[this.printed] != null) {
+            for (var record : this.results[this.printed]) System.out.print(record);
+            this.printed += 1;
+        }
+        System.out.flush();
+
+        for (var other : this.running) {
+            if (other == task || other.cancelled || !done(other)) continue;
+            other.cancelled = true;
+            var thread = new Thread(() -> cancel(other), "mcsc-cancel " + other.id);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    // Whether every unit the task has not sent yet came from another one
+    boolean done(Task task) {
+        for (int i = task.next; i < task.units.size(); i++) {
+            if (this.results[task.units.get(i)] == null) return false;
+        }
+        return true;
+    }
+
+    // The task ends with `status=cancelled` then, or has already ended
+    void cancel(Task task) {
+        try (var pipe = SocketPipe.connect(task.endpoint, this.timeoutMillis)) {
+            pipe.setTimeout(this.timeoutMillis);
+            pipe.write("cancel id=" + task.id + this.version);
+            pipe.read();
+        } catch (Exception e) {
+            System.err.println("warning: could not cancel " + task.id + " on " + task.endpoint + ": " + e.getMessage());
+        }
+    }
+
+    synchronized void finish(Task task, String head) {
+        task.end = System.nanoTime();
+        this.running.remove(task);
+        if (task.cancelled) {
+            // Neither its time nor its status says anything about the check
+            notifyAll();
+            return;
+        }
+        if (task.lines > 0) {
+            this.finishedLines += task.lines;
+            this.finishedMillis += (task.end - task.start) / 1_000_000;
+        }
+
+        for (var option : head.split(" ")) {
+            if (!option.startsWith("status=")) continue;
+            var status = option.substring("status=".length());
+            if (!status.equals("success") && !status.equals("failed")) this.stopStatus = status;
+        }
+        notifyAll();
+    }
+
+    // Units of failed endpoints first, then the rest of a straggler.
+    // `null` once every unit is checked
+    synchronized Task nextTask() throws InterruptedException {
+        while (true) {
+            if (this.completed == this.units.size()) return null;
+
+            var units = new ArrayList<Integer>();
+            while (!this.orphans.isEmpty()) {
+                var unit = this.orphans.poll();
+                if (this.results[unit] == null) units.add(unit);
+            }
+
+            // Until a check with lines has finished, the speed is unknown
+            // and no check can be told to be slow
+            if (units.isEmpty() && this.finishedLines > 0) {
+                var now = System.nanoTime();
+                var millisPerLine = (double) this.finishedMillis / this.finishedLines;
+                for (var task : this.running) {
+                    var elapsed = (now - task.start) / 1_000_000;
+                    var expected = STRAGGLER_FACTOR * millisPerLine * task.lines;
+                    if (task.resent || elapsed < Math.max(expected, STRAGGLER_MIN_MILLIS)) continue;
+
+                    task.resent = true;
+                    for (int i = task.next; i < task.units.size(); i++) {
+                        var unit = task.units.get(i);
+                        if (this.results[unit] == null) units.add(unit);
+                    }
+                    if (!units.isEmpty()) break;
+                }
+            }
+
+            if (!units.isEmpty()) {
+                units.sort(null);
+                long lines = 0;
+                for (var unit : units) lines += this.units.get(unit).lines();
+                return newTask(units, lines);
+            }
+
+            wait(50);
+        }
+    }
+
+    // Datapack directories are split into their function files, named the
+    // way the server names them, and archives are kept whole. Both are
+    // walked in the server's order, see `server.Datapack`
+    static List<Unit> units(List<String> entries) throws IOException {
+        var units = new ArrayList<Unit>();
+        for (var entry : entries) {
+            var path = Path.of(entry);
+            if (Files.isDirectory(path)) {
+                for (var file : functions(path)) {
+                    var shown = entry + "/" + path.relativize(file).toString().replace('\\', '/');
+                    units.add(new Unit(shown, false, 1, lines(file)));
+                }
+            } else if (entry.endsWith(".zip")) {
+                try (var archive = FileSystems.newFileSystem(path, (ClassLoader) null)) {
+                    var files = functions(archive.getRootDirectories().iterator().next());
+                    long lines = 0;
+                    for (var file : files) lines += lines(file);
+                    units.add(new Unit(entry, true, files.size(), lines));
+                }
+            } else {
+                units.add(new Unit(entry, false, 1, lines(path)));
+            }
+        }
+        return units;
+    }
+
+    static List<Path> functions(Path root) throws IOException {
+        var files = new ArrayList<Path>();
+        for (var namespace : list(root.resolve("data"))) {
+            for (var name : new String[] { "function", "functions" }) {
+                var dir = namespace.resolve(name);
+                if (Files.isDirectory(dir)) functions(dir, files);
+            }
+        }
+        return files;
+    }
+
+    static void functions(Path dir, List<Path> files) throws IOException {
+        for (var child : list(dir)) {
+            if (Files.isDirectory(child)) {
+                functions(child, files);
+            } else if (child.getFileName().toString().endsWith(EXTENSION) && Files.isRegularFile(child)) {
+                files.add(child);
+            }
+        }
+    }
+
+    static List<Path> list(Path dir) throws IOException {
+        try (var entries = Files.list(dir)) {
+            return entries.sorted().toList();
+        }
+    }
+
+    // The cost of a unit, empty files still cost a request line
+    static long lines(Path file) throws IOException {
+        long lines = 1;
+        var buffer = new byte[1 << 16];
+        try (var in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') lines++;
+                }
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,337 @@
+package host;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import utils.SocketPipe;
+
+// Checkers of several versions in one JVM:
+//     java -jar build/bin/host.jar build/bin/server_launcher-1.21.7.jar build/bin/server_launcher-1.20.4.jar
+//
+// Every launcher is unpacked the way its own bundler does it, and its
+// server is bootstrapped headless in a class loader of its own, one
+// version after another. Instead of listening itself, the checker of a
+// version registers with the host, which accepts the connections and
+// hands each one to the version its first request names with
+// `version=<version>`, or to the first version if it names none.
+//
+// The JDK, our `utils` and the libraries in `SHARED` that every version
+// ships in the same build are loaded once for all versions
+public class Main {
+    // Worlds and caches of the hosted versions, one directory each
+    public static final String DIR = "mcsc-host";
+
+    // Path prefixes in `META-INF/libraries.list` of libraries that need
+    // nothing but the JDK, so a copy loaded outside of a version can
+    // still link. `-Dmcsc.shared=` turns sharing off
+    static final String[] SHARED = System.getProperty(
+        "mcsc.shared",
+        String.join(",",
+            "com/mojang/brigadier/",
+            "it/unimi/dsi/fastutil/",
+            "com/google/code/gson/",
+            "com/google/guava/",
+            "net/sf/jopt-simple/",
+            "org/apache/commons/commons-lang3/",
+            "commons-io/commons-io/",
+            "org/joml/"
+        )
+    ).split(",");
+
+    static record Entry(String hash, String id, String path) {}
+
+    static record Bundle(
+        Path        jar,
+        String      mainClass,
+        Entry       server,
+        List<Entry> libraries
+    ) {}
+
+    // Directories of the versions by their class loader, see `dirOf()`
+    static final ConcurrentHashMap<ClassLoader, Path> dirs = new ConcurrentHashMap<>();
+
+    // Connection handlers by version, in the order the versions started
+    static final LinkedHashMap<String, BiConsumer<SocketPipe, String>> versions = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("usage: java -jar host.jar <server-launcher-jar>...");
+            System.exit(1);
+        }
+
+        // Of a previous host that was killed
+        Files.deleteIfExists(SocketPipe.readyPath(SocketPipe.path()));
+
+        // Read by `server.Main` of every version
+        System.setProperty("mcsc.host", "true");
+        System.setProperty("mcsc.headless", "true");
+
+        var bundles = new ArrayList<Bundle>();
+        for (var arg : args) {
+            try {
+                bundles.add(readBundle(Paths.get(arg)));
+            } catch (IOException e) {
+                System.err.println("error: could not read " + arg + ": " + e);
+                System.exit(1);
+            }
+        }
+
+        // Shared if every version has the same build of it
+        var shared = new ArrayList<Entry>();
+        for (var library : bundles.get(0).libraries()) {
+            var isShared = isShareable(library.path())
+                && bundles.stream().allMatch(b -> b.libraries().contains(library));
+            if (isShared) shared.add(library);
+        }
+
+        var sharedLoader = new URLClassLoader(
+            "mcsc-shared",
+            extractLibraries(bundles.get(0).jar(), shared),
+            ClassLoader.getSystemClassLoader()
+        );
+        info(shared.size() + " libraries are shared by all versions");
+
+        for (var bundle : bundles) {
+            start(bundle, shared, sharedLoader);
+        }
+
+        synchronized (versions) {
+            if (versions.isEmpty()) {
+                System.err.println("error: no version could be started");
+                System.exit(1);
+            }
+            info("hosting " + String.join(", ", versions.keySet()));
+        }
+
+        var socketPath = SocketPipe.path();
+        try (var listener = SocketPipe.listen(socketPath)) {
+            // The versions warmed up before they registered
+            synchronized (versions) {
+                SocketPipe.markReady(socketPath, "versions=" + String.join(",", versions.keySet()));
+            }
+            while (true) {
+                var pipe = new SocketPipe(listener.accept());
+                new Thread(() -> route(pipe), "mcsc-route").start();
+            }
+        } catch (Exception e) {
+            System.err.println("error: could not listen on " + socketPath + ": " + e);
+            System.exit(1);
+        }
+    }
+
+    // Called by `server.Main` of a version once its checker is ready. The
+    // handler owns the connection it is given together with its first frame
+    public static void register(String version, BiConsumer<SocketPipe, String> handler) {
+        synchronized (versions) {
+            if (versions.containsKey(version)) {
+                throw new IllegalStateException(version + " is already hosted");
+            }
+            versions.put(version, handler);
+            versions.notifyAll();
+        }
+    }
+
+    // Called by `server.Main` of a version for the files a server keeps in
+    // its working directory, so the versions don't share `server.properties`
+    // and `eula.txt`
+    public static Path dirOf(ClassLoader loader) {
+        return dirs.get(loader);
+    }
+
+    // Bootstraps the server the way the bundler does, on a thread whose
+    // context class loader is the version's, and waits until its checker
+    // registers or the bootstrap gives up
+    static void start(Bundle bundle, List<Entry> shared, ClassLoader sharedLoader) throws Exception {
+        var id = bundle.server().id();
+        info("starting " + id + "...");
+
+        var universe = Paths.get(DIR, id);
+        Files.createDirectories(universe);
+        var serverJar = universe.resolve(Paths.get(bundle.server().path()).getFileName());
+        try (var fs = openJar(bundle.jar())) {
+            // The listed hash is the one of the server before our code was
+            // injected, so it is always extracted
+            Files.copy(
+                fs.getPath("META-INF/versions", bundle.server().path()),
+                serverJar,
+                StandardCopyOption.REPLACE_EXISTING
+            );
+        }
+
+        var own = new ArrayList<>(bundle.libraries());
+        own.removeAll(shared);
+        var urls = new ArrayList<URL>();
+        urls.add(serverJar.toUri().toURL());
+        urls.addAll(List.of(extractLibraries(bundle.jar(), own)));
+        var loader = new URLClassLoader("mcsc-" + id, urls.toArray(new URL[0]), sharedLoader);
+        dirs.put(loader, universe);
+        // Read when the version's log4j starts, which is before it registers,
+        // and the versions start one after another
+        System.setProperty("mcsc.logs", universe.resolve("logs").toString());
+
+        var runtime = Runtime.getRuntime();
+        System.gc();
+        var heapBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        int hosted;
+        synchronized (versions) {
+            hosted = versions.size();
+        }
+
+        var thread = new Thread(() -> {
+            try {
+                loader.loadClass(bundle.mainClass())
+                    .getMethod("main", String[].class)
+                    .invoke(null, (Object) new String[] { "--universe", universe.toString() });
+            } catch (InvocationTargetException e) {
+                System.err.println("error: " + id + " stopped: " + e.getCause());
+            } catch (Exception e) {
+                System.err.println("error: could not start " + id + ": " + e);
+            }
+        }, "mcsc-" + id);
+        thread.setContextClassLoader(loader);
+        thread.start();
+
+        synchronized (versions) {
+            while (versions.size() == hosted && thread.isAlive()) versions.wait(100);
+            if (versions.size() == hosted) {
+                System.err.println("warning: " + id + " is not hosted, it needs the headless bootstrap");
+                return;
+            }
+        }
+
+        System.gc();
+        var heapAfter = runtime.totalMemory() - runtime.freeMemory();
+        info(id + " is ready, " + (heapAfter - heapBefore) / (1 << 20) + " MB of heap");
+    }
+
+    // Hands the connection to the version its first request names. Requests
+    // for versions that are not hosted are answered with an error
+    static void route(SocketPipe pipe) {
+        try {
+            String frame;
+            while ((frame = pipe.read()) != null) {
+                var version = versionOf(frame);
+                BiConsumer<SocketPipe, String> handler;
+                synchronized (versions) {
+                    handler = version == null
+                        ? versions.values().iterator().next()
+                        : versions.get(version);
+                    if (handler == null) {
+                        pipe.write(
+                            "error version '" + version + "' is not hosted, hosted: "
+                            + String.join(", ", versions.keySet())
+                        );
+                        continue;
+                    }
+                }
+
+                handler.accept(pipe, frame);
+                return;
+            }
+            pipe.close();
+        } catch (Exception e) {
+            System.err.println("error: could not route a request: " + e);
+        }
+    }
+
+    // The `version=` option of the request header, see `server.Request`
+    static String versionOf(String frame) {
+        var newline = frame.indexOf('\n');
+        var header = newline < 0 ? frame : frame.substring(0, newline);
+        for (var option : header.trim().split(" +")) {
+            if (option.startsWith("version=")) return option.substring("version=".length());
+        }
+        return null;
+    }
+
+    // `META-INF/{versions,libraries}.list` lines are `<sha256>\t<id>\t<path>`,
+    // the files are stored under `META-INF/{versions,libraries}/<path>`
+    static Bundle readBundle(Path jar) throws IOException {
+        try (var fs = openJar(jar)) {
+            var mainClass = fs.getPath("META-INF/main-class");
+            if (!Files.exists(mainClass)) {
+                throw new IOException("not a bundled server launcher (1.18 or newer)");
+            }
+
+            var servers = readList(fs.getPath("META-INF/versions.list"));
+            if (servers.size() != 1) throw new IOException("expected one server, found " + servers.size());
+
+            return new Bundle(
+                jar,
+                Files.readString(mainClass).trim(),
+                servers.get(0),
+                readList(fs.getPath("META-INF/libraries.list"))
+            );
+        }
+    }
+
+    static List<Entry> readList(Path list) throws IOException {
+        var entries = new ArrayList<Entry>();
+        for (var line : Files.readAllLines(list)) {
+            if (line.isBlank()) continue;
+            var fields = line.split("\t");
+            if (fields.length != 3) throw new IOException("invalid line in " + list + ": " + line);
+            entries.add(new Entry(fields[0], fields[1], fields[2]));
+        }
+        return entries;
+    }
+
+    // Into `libraries/` like the bundler does, so a server started from the
+    // same directory finds them already there
+    static URL[] extractLibraries(Path jar, List<Entry> libraries) throws Exception {
+        var urls = new URL[libraries.size()];
+        try (var fs = openJar(jar)) {
+            for (int i = 0; i < urls.length; i++) {
+                var library = libraries.get(i);
+                var path = Paths.get("libraries", library.path());
+                if (!Files.exists(path) || !sha256(path).equals(library.hash())) {
+                    Files.createDirectories(path.getParent());
+                    Files.copy(
+                        fs.getPath("META-INF/libraries", library.path()),
+                        path,
+                        StandardCopyOption.REPLACE_EXISTING
+                    );
+                }
+                urls[i] = path.toUri().toURL();
+            }
+        }
+        return urls;
+    }
+
+    static boolean isShareable(String path) {
+        for (var prefix : SHARED) {
+            if (!prefix.isEmpty() && path.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    static FileSystem openJar(Path jar) throws IOException {
+        return FileSystems.newFileSystem(jar, (ClassLoader) null);
+    }
+
+    static String sha256(Path path) throws Exception {
+        return HexFormat.of().formatHex(
+            MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path))
+        );
+    }
+
+    static void info(String message) {
+        System.out.println("info: " + message);
+    }
+}
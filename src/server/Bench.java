@@ -0,0 +1,178 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import server.ObjectWrapper.MethodSignature;
+import static server.ObjectWrapper.MethodSignature.*;
+import static server.ObjectWrapper.*;
+
+// Measures the per-command hot path: every command of the given files is
+// checked `rounds` times with `parseCommand()`, bypassing the caches, and
+// the time and the bytes allocated by the checking thread are reported
+// per command. The same rounds are run through the reflective path that
+// `parseCommand()` replaced, as `bench.baseline.*`, so the gain can be
+// seen on every version. Neither is recorded in the parser's `Metrics`.
+// `bench.tick` names what the server's tick loop was doing meanwhile, see
+// `Main.TICK`, so runs with and without `-Dmcsc.tick=throttle` can be told
+// apart
+public class Bench {
+    static final MethodSignature PARSE           = sig("parse", String.class, Object.class);
+    static final MethodSignature GET_CONTEXT     = sig("getContext");
+    static final MethodSignature BUILD           = sig("build", String.class);
+    static final MethodSignature GET_READER      = sig("getReader");
+    static final MethodSignature GET_RAW_MESSAGE = sig("getRawMessage");
+    static final MethodSignature GET_STRING      = sig("getString");
+    static final MethodSignature GET_INPUT       = sig("getInput");
+    static final MethodSignature GET_CURSOR      = sig("getCursor");
+    static final MethodSignature DISPATCHER_UNKNOWN_COMMAND = sig("dispatcherUnknownCommand");
+
+    public static String run(
+        CommandParser parser,
+        Path          cwd,
+        String[]      filePaths,
+        int           rounds
+    ) throws Exception {
+        var commands = new ArrayList<String>();
+        for (var filePath : filePaths) {
+            for (var line : Files.readAllLines(cwd.resolve(filePath))) {
+                line = line.trim();
+                if (!line.isEmpty() && line.charAt(0) != '#') commands.add(line);
+            }
+        }
+
+        if (commands.isEmpty()) {
+            throw new IllegalArgumentException("no commands to run");
+        }
+
+        // Allocations are only counted for platform threads,
+        // so the measurement does not run on the request's thread
+        var result = new String[1];
+        var error = new Exception[1];
+        var thread = new Thread(() -> {
+            try {
+                result[0] = measure(parser, commands, rounds);
+            } catch (Exception e) {
+                error[0] = e;
+            }
+        }, "mcsc-bench");
+        thread.start();
+        thread.join();
+
+        if (error[0] != null) throw error[0];
+        return result[0];
+    }
+
+    static interface Check {
+        public Diagnostic run(String command) throws Exception;
+    }
+
+    static String measure(
+        CommandParser parser,
+        List<String>  commands,
+        int           rounds
+    ) throws Exception {
+        var source = parser.createSource();
+        var metrics = new Metrics();
+        var errors = new int[1];
+        var current = run(commands, rounds, errors, c -> parser.parseCommand(c, 0, source, metrics));
+        var baseline = run(commands, rounds, new int[1], c -> parseReflectively(parser, c, 0));
+
+        return String.format(
+            "bench.tick=%s\n" +
+            "bench.commands=%d\n" +
+            "bench.invalid=%d\n" +
+            "bench.rounds=%d\n" +
+            "bench.ns-per-command=%.1f\n" +
+            "bench.bytes-per-command=%.1f\n" +
+            "bench.baseline.ns-per-command=%.1f\n" +
+            "bench.baseline.bytes-per-command=%.1f\n",
+            Main.headlessStarted ? "headless" : Main.TICK,
+            commands.size(), errors[0], rounds,
+            current[0], current[1],
+            baseline[0], baseline[1]
+        );
+    }
+
+    // Returns the ns and the bytes per command, `errors[0]` is set to the
+    // number of invalid commands
+    static double[] run(List<String> commands, int rounds, int[] errors, Check check) throws Exception {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        // One round to resolve handles and load classes
+        for (var command : commands) {
+            if (check.run(command) != null) errors[0] += 1;
+        }
+
+        var bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        var timeBefore = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (var command : commands) {
+                check.run(command);
+            }
+        }
+        var time = System.nanoTime() - timeBefore;
+        var bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+
+        long total = (long) rounds * commands.size();
+        return new double[] { (double) time / total, (double) bytes / total };
+    }
+
+    // The check before `parseCommand()` was reworked: a source per line
+    // and an `ObjectWrapper` per reflective hop. Without the root index,
+    // which came later
+    static Diagnostic parseReflectively(CommandParser parser, String command, int line) throws Exception {
+        var results = parser.dispatcher.invoke(PARSE, command, parser.createSource());
+
+        try {
+            invokeStatic(
+                "net.minecraft.commands.Commands",
+                sig("validateParseResults", results.object.getClass()),
+                results.object
+            );
+
+            var commandContext = results
+                .invoke(GET_CONTEXT)
+                .invoke(BUILD, command)
+                .object;
+
+            var result = (Optional<?>) invokeStatic(
+                "com.mojang.brigadier.context.ContextChain",
+                sig("tryFlatten", commandContext.getClass()),
+                commandContext
+            ).object;
+
+            if (!result.isPresent()) {
+                var exception = getStatic(
+                    "com.mojang.brigadier.exceptions.CommandSyntaxException",
+                    "BUILT_IN_EXCEPTIONS"
+                )
+                .invoke(DISPATCHER_UNKNOWN_COMMAND)
+                .invoke(
+                    sig("createWithContext", findClass("com.mojang.brigadier.ImmutableStringReader")),
+                    results.invoke(GET_READER).object
+                );
+                return diagnostic(exception, line);
+            }
+        } catch (InvocationTargetException t) {
+            return diagnostic(new ObjectWrapper(t.getCause()), line);
+        }
+
+        return null;
+    }
+
+    static Diagnostic diagnostic(ObjectWrapper e, int line) throws Exception {
+        // Through the interface, messages may be of classes that are not public
+        var message = e.invoke(GET_RAW_MESSAGE);
+        message.clazz = findClass("com.mojang.brigadier.Message");
+        var msg = (String) message.invoke(GET_STRING).object;
+        var input = (String) e.invoke(GET_INPUT).object;
+        var cursor = (int) e.invoke(GET_CURSOR).object;
+        return new Diagnostic(line, msg, input, cursor);
+    }
+}
@@ -0,0 +1,249 @@
+package server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Diagnostics of already checked files keyed by (Minecraft version,
+// SHA-256 of the file content), so unchanged files are not parsed again.
+//
+// file format (deflated):
+//     int    MAGIC
+//     int    FORMAT
+//     int    entry count
+//     entry:
+//         str    version
+//         str    hash
+//         long   last use in milliseconds since epoch
+//         int    diagnostic count
+//         diagnostic:
+//             int    line
+//             str    message
+//             str    input, empty string if there is no position
+//             int    cursor
+//
+// `str` is an int byte count followed by UTF-8 bytes
+public class CheckCache {
+    static final int MAGIC  = 0x4d435343; // "MCSC"
+    static final int FORMAT = 1;
+
+    public static record Key(String version, String hash) {}
+
+    static final class Entry {
+        final List<Diagnostic> diagnostics;
+        volatile long lastUsed;
+
+        Entry(List<Diagnostic> diagnostics, long lastUsed) {
+            this.diagnostics = diagnostics;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    // An entry with its `lastUsed` at the time of the snapshot, so sorting
+    // is not disturbed by requests that use the entry meanwhile
+    static record Use(Key key, Entry entry, long lastUsed) {}
+
+    // Share of `maxEntries` that is kept when the cache is full, so the
+    // entries are not sorted on every `put()` once it is
+    static final double KEPT_ON_EVICTION = 0.9;
+
+    public final Path   path;
+    public final String version;
+    public final int    maxEntries;
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty = false;
+
+    public CheckCache(Path path, String version, int maxEntries) {
+        this.path = path;
+        this.version = version;
+        this.maxEntries = maxEntries;
+    }
+
+    public Key key(ByteBuffer content) throws Exception {
+        var digest = MessageDigest.getInstance("SHA-256");
+        digest.update(content.duplicate());
+        return key(digest);
+    }
+
+    // The same key as `key(ByteBuffer)` of its content, without holding
+    // the file in memory
+    public Key key(Path path) throws Exception {
+        var digest = MessageDigest.getInstance("SHA-256");
+        try (var in = new DigestInputStream(Files.newInputStream(path), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return key(digest);
+    }
+
+    Key key(MessageDigest digest) {
+        return new Key(
+            this.version,
+            Base64.getEncoder().encodeToString(digest.digest())
+        );
+    }
+
+    // Returns `null` on a miss
+    public List<Diagnostic> get(Key key) {
+        var entry = this.entries.get(key);
+        if (entry == null) return null;
+        entry.lastUsed = System.currentTimeMillis();
+        return entry.diagnostics;
+    }
+
+    public void put(Key key, List<Diagnostic> diagnostics) {
+        this.entries.put(key, new Entry(List.copyOf(diagnostics), System.currentTimeMillis()));
+        this.dirty = true;
+        if (this.entries.size() > this.maxEntries) evict();
+    }
+
+    // Drops the least recently used entries down to `KEPT_ON_EVICTION`
+    // of `maxEntries`
+    synchronized void evict() {
+        if (this.entries.size() <= this.maxEntries) return;
+
+        var uses = snapshot();
+        uses.sort(Comparator.comparingLong(Use::lastUsed).reversed());
+        var kept = (int) (this.maxEntries * KEPT_ON_EVICTION);
+        for (var use : uses.subList(Math.min(kept, uses.size()), uses.size())) {
+            this.entries.remove(use.key(), use.entry());
+        }
+    }
+
+    List<Use> snapshot() {
+        var uses = new ArrayList<Use>(this.entries.size());
+        for (var e : this.entries.entrySet()) {
+            uses.add(new Use(e.getKey(), e.getValue(), e.getValue().lastUsed));
+        }
+        return uses;
+    }
+
+    // The file is rewritten without the entries on the next save
+    public void clear() {
+        this.entries.clear();
+        this.dirty = true;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public synchronized void load() {
+        if (!Files.exists(this.path)) return;
+
+        try (var in = new DataInputStream(new BufferedInputStream(
+            new InflaterInputStream(Files.newInputStream(this.path))
+        ))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                System.err.println("warning: ignoring cache " + this.path + ": unknown format");
+                return;
+            }
+
+            var count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                var key = new Key(readString(in), readString(in));
+                var lastUsed = in.readLong();
+                this.entries.put(key, new Entry(readDiagnostics(in), lastUsed));
+            }
+        } catch (Exception e) {
+            System.err.println("warning: could not load cache " + this.path + ": " + e);
+            this.entries.clear();
+        }
+        // Of a server with a higher `maxEntries`
+        evict();
+    }
+
+    // Saves on a daemon thread every `intervalSeconds`, so requests never
+    // wait for the file. The server saves once more on exit
+    public void saveEvery(long intervalSeconds) {
+        var saver = Executors.newSingleThreadScheduledExecutor(task -> {
+            var thread = new Thread(task, "mcsc-cache-save");
+            thread.setDaemon(true);
+            return thread;
+        });
+        saver.scheduleWithFixedDelay(this::saveIfDirty, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void saveIfDirty() {
+        if (!this.dirty) return;
+        this.dirty = false;
+
+        var tmpPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+        try {
+            // Entries put while it is written are saved the next time
+            var uses = snapshot();
+            try (var out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(Files.newOutputStream(tmpPath))
+            ))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeInt(uses.size());
+                for (var use : uses) {
+                    writeString(out, use.key().version());
+                    writeString(out, use.key().hash());
+                    out.writeLong(use.lastUsed());
+                    writeDiagnostics(out, use.entry().diagnostics);
+                }
+            }
+
+            Files.move(
+                tmpPath, this.path,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE
+            );
+        } catch (Exception e) {
+            System.err.println("warning: could not save cache " + this.path + ": " + e);
+        }
+    }
+
+    static List<Diagnostic> readDiagnostics(DataInputStream in) throws Exception {
+        var count = in.readInt();
+        var diagnostics = new ArrayList<Diagnostic>(count);
+        for (int i = 0; i < count; i++) {
+            var line = in.readInt();
+            var message = readString(in);
+            var input = readString(in);
+            var cursor = in.readInt();
+            diagnostics.add(new Diagnostic(
+                line, message,
+                input.isEmpty() ? null : input,
+                cursor
+            ));
+        }
+        return List.copyOf(diagnostics);
+    }
+
+    static void writeDiagnostics(DataOutputStream out, List<Diagnostic> diagnostics) throws Exception {
+        out.writeInt(diagnostics.size());
+        for (var d : diagnostics) {
+            out.writeInt(d.line());
+            writeString(out, d.message());
+            writeString(out, d.input() == null ? "" : d.input());
+            out.writeInt(d.cursor());
+        }
+    }
+
+    static String readString(DataInputStream in) throws Exception {
+        var bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws Exception {
+        var bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,103 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded LRU keyed by command text, e.g. command -> validation outcome.
+// Generated datapacks repeat the same lines a lot, and the outcome of a
+// line does not depend on where it is. The map is split into segments, so
+// worker threads checking different lines rarely wait for each other
+public class CommandCache<V> {
+    static final int SEGMENTS = 16;
+
+    // Stored for valid commands, so that `null` still means a miss
+    public static final Diagnostic VALID = new Diagnostic(0, "", null, -1);
+
+    public final int capacity;
+    public final LongAdder hits      = new LongAdder();
+    public final LongAdder misses    = new LongAdder();
+    public final LongAdder evictions = new LongAdder();
+
+    private final ArrayList<Segment> segments = new ArrayList<>(SEGMENTS);
+
+    final class Segment extends LinkedHashMap<String, V> {
+        final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            if (size() <= this.capacity) return false;
+            evictions.increment();
+            return true;
+        }
+    }
+
+    public CommandCache(int capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments.add(new Segment(Math.max(1, capacity / SEGMENTS)));
+        }
+    }
+
+    // Commands are compared after trimming, which `parseLines()` already
+    // does. Inner whitespace is significant to brigadier, so it is kept.
+    // Returns `null` on a miss
+    public V get(String command) {
+        var segment = segmentFor(command);
+        V outcome;
+        synchronized (segment) {
+            outcome = segment.get(command);
+        }
+
+        if (outcome == null) {
+            this.misses.increment();
+        } else {
+            this.hits.increment();
+        }
+        return outcome;
+    }
+
+    // For validation `outcome` is `VALID` or the diagnostic of the command
+    // at any line
+    public void put(String command, V outcome) {
+        var segment = segmentFor(command);
+        synchronized (segment) {
+            segment.put(command, outcome);
+        }
+    }
+
+    public void clear() {
+        for (var segment : this.segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        var size = 0;
+        for (var segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public double hitRate() {
+        var hits = this.hits.sum();
+        var total = hits + this.misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private Segment segmentFor(String command) {
+        var h = command.hashCode();
+        return this.segments.get((h ^ (h >>> 16)) & (SEGMENTS - 1));
+    }
+}
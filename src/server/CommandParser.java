@@ -1,143 +1,852 @@
 package server;
 
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 
 import java.util.Optional;
-import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ExecutionException;
+import java.lang.invoke.MethodHandle;
 
-import utils.FilePipe;
+import utils.SocketPipe;
 import static server.ObjectWrapper.MethodSignature.*;
 import static server.ObjectWrapper.*;
 
 public class CommandParser {
+    static final MethodSignature GET_READER                  = sig("getReader");
+    static final MethodSignature DISPATCHER_UNKNOWN_COMMAND  = sig("dispatcherUnknownCommand");
+
     public ObjectWrapper server;
-    public ObjectWrapper dispatcher;
-    public FilePipe      pipe;
+    public ForkJoinPool  workers;
+    public int           chunkSize;
+    public CheckCache    cache;
+    public CommandCache<Diagnostic>       commandCache;
+    public CommandCache<List<Suggestion>> completionCache;
+    public final Metrics                  metrics = new Metrics();
+
+    // The server creates a new command tree on `/reload`, see `refresh()`
+    public volatile Object        commands;
+    public volatile ObjectWrapper dispatcher;
+
+    // Rejects unknown commands before parsing, `null` if the command tree
+    // could not be indexed
+    public volatile RootIndex     roots;
+
+    // The per-command path is resolved once into handles with `Object`
+    // types, so a command is checked with `invokeExact` calls and no
+    // lookups, argument arrays or `ObjectWrapper`s
+    final MethodHandle parse;
+    final MethodHandle createCommandSourceStack;
+    final MethodHandle validateParseResults;
+    final MethodHandle getContext;
+    final MethodHandle build;
+    final MethodHandle tryFlatten;
+    final MethodHandle getRawMessage;
+    final MethodHandle getString;
+    final MethodHandle getInput;
+    final MethodHandle getCursor;
+    final MethodHandle getCommands;
+    final MethodHandle getCompletionSuggestions;
+    final Class<?>     syntaxException;
+
+    // `threads` is the number of files (or chunks of a file) checked at
+    // the same time, 1 checks them one by one on the calling thread.
+    // Files of at least `chunkSize` bytes are split into chunks
+    public CommandParser(
+        Object   server,
+        int      threads,
+        int      chunkSize
+    ) throws Exception {
+        this(
+            server,
+            new ObjectWrapper(server).invoke(sig("getCommands")).object,
+            threads,
+            chunkSize
+        );
+    }
+
+    // Checks with `commands` without a server, see `server.Main.initHeadless()`
+    public static CommandParser headless(
+        Object   commands,
+        int      threads,
+        int      chunkSize
+    ) throws Exception {
+        return new CommandParser(null, commands, threads, chunkSize);
+    }
 
-    public CommandParser(Object server, FilePipe pipe) throws Exception {
-        this.pipe = pipe;
+    // `server` is `null` in headless mode
+    CommandParser(
+        Object   server,
+        Object   commands,
+        int      threads,
+        int      chunkSize
+    ) throws Exception {
+        this.chunkSize = Math.max(1, chunkSize);
+        if (threads > 1) this.workers = new ForkJoinPool(threads);
         this.server = new ObjectWrapper(server);
-        this.dispatcher = this.server
-            .invoke(sig("getCommands"))
-            .invoke(sig("getDispatcher"));
+        this.commands = commands;
+        this.dispatcher = new ObjectWrapper(this.commands).invoke(sig("getDispatcher"));
+
+        var parseResults = findClass("com.mojang.brigadier.ParseResults");
+        var contextBuilder = findClass("com.mojang.brigadier.context.CommandContextBuilder");
+        var context = findClass("com.mojang.brigadier.context.CommandContext");
+        this.syntaxException = findClass("com.mojang.brigadier.exceptions.CommandSyntaxException");
+
+        this.parse = findHandle(
+            this.dispatcher.clazz,
+            sig("parse", String.class, Object.class)
+        );
+        this.createCommandSourceStack = server == null ? null : findHandle(
+            this.server.clazz,
+            sig("createCommandSourceStack")
+        );
+        this.validateParseResults = findHandle(
+            findClass("net.minecraft.commands.Commands"),
+            sig("validateParseResults", parseResults)
+        );
+        this.getContext = findHandle(parseResults, sig("getContext"));
+        this.build = findHandle(contextBuilder, sig("build", String.class));
+        this.tryFlatten = findHandle(
+            findClass("com.mojang.brigadier.context.ContextChain"),
+            sig("tryFlatten", context)
+        );
+        this.getRawMessage = findHandle(this.syntaxException, sig("getRawMessage"));
+        this.getString = findHandle(findClass("com.mojang.brigadier.Message"), sig("getString"));
+        this.getInput = findHandle(this.syntaxException, sig("getInput"));
+        this.getCursor = findHandle(this.syntaxException, sig("getCursor"));
+        this.getCommands = server == null ? null : findHandle(this.server.clazz, sig("getCommands"));
+        this.getCompletionSuggestions = findHandle(
+            this.dispatcher.clazz,
+            sig("getCompletionSuggestions", parseResults, int.class)
+        );
+        this.roots = indexRoots();
     }
 
-    public void parseFiles(Path cwd, String[] filePaths) throws Exception {
-        var errorCount = 0;
-        for (var filePath : filePaths) {
-            errorCount += parseFile(cwd, filePath);
+    // Picks up the command tree of a `/reload` and forgets everything
+    // learned from the old one, the saved diagnostics of files too.
+    // Called at the start of every request, it costs one call when
+    // nothing changed
+    public synchronized void refresh() throws Exception {
+        // Without a server nothing is reloaded
+        if (this.getCommands == null) return;
+
+        Object commands;
+        try {
+            commands = (Object) this.getCommands.invokeExact(this.server.object);
+        } catch (Throwable t) {
+            throw targetException(t);
         }
+        if (commands == this.commands) return;
 
-        if (errorCount == 0) {
-            pipe.write("success\n");
+        this.dispatcher = new ObjectWrapper(commands).invoke(sig("getDispatcher"));
+        this.commands = commands;
+        this.roots = indexRoots();
+        if (this.commandCache != null) this.commandCache.clear();
+        if (this.completionCache != null) this.completionCache.clear();
+        if (this.cache != null) this.cache.clear();
+    }
+
+    // The source a command is parsed with. It is not changed by parsing,
+    // so one source is created per request and shared by all its lines
+    public Object createSource() throws Exception {
+        if (this.createCommandSourceStack == null) return headlessSource();
+        try {
+            return (Object) this.createCommandSourceStack.invokeExact(this.server.object);
+        } catch (Throwable t) {
+            throw targetException(t);
         }
     }
 
-    public int parseFile(Path cwd, String filePath) throws Exception {
-        var errorCount = 0;
-        try (var reader = Files.newBufferedReader(cwd.resolve(filePath))) {
-            int line = 0;
-            while (true) {
-                String command;
-                while (true) {
-                    command = reader.readLine();
-                    line += 1;
-                    if (command == null) return errorCount;
-                    command = command.trim();
-                    if (command.equals(""))       continue;
-                    if (command.charAt(0) == '#') continue;
-                    break;
-                }
+    // What `createCommandSourceStack()` would return without the server's
+    // level and position: a source named `Server` with permission level 4
+    static Object headlessSource() throws Exception {
+        var component = invokeStatic(
+            "net.minecraft.network.chat.Component",
+            sig("literal", String.class),
+            "Server"
+        ).object;
+
+        var stack = findClass("net.minecraft.commands.CommandSourceStack");
+        for (var constructor : stack.getConstructors()) {
+            // (source, position, rotation, level, permission level,
+            //  name, display name, server, entity)
+            if (constructor.getParameterCount() != 9) continue;
+            return constructor.newInstance(
+                getStatic("net.minecraft.commands.CommandSource", "NULL").object,
+                getStatic("net.minecraft.world.phys.Vec3", "ZERO").object,
+                getStatic("net.minecraft.world.phys.Vec2", "ZERO").object,
+                null, 4, "Server", component, null, null
+            );
+        }
+        throw new NoSuchMethodException("CommandSourceStack has no constructor with 9 parameters");
+    }
+
+    Object source(Request request) throws Exception {
+        var source = request.source;
+        if (source == null) {
+            source = request.source = createSource();
+        }
+        return source;
+    }
+
+    public String version() {
+        try {
+            if (this.server.object != null) {
+                return (String) this.server.invoke(sig("getServerVersion")).object;
+            }
 
-                errorCount += parseCommand(command, filePath, line);
+            // `getName()` became `name()` in 1.21.6
+            var version = invokeStatic(
+                "net.minecraft.SharedConstants",
+                sig("getCurrentVersion")
+            );
+            try {
+                return (String) version.invoke(sig("getName")).object;
+            } catch (NoSuchMethodException e) {
+                return (String) version.invoke(sig("name")).object;
             }
+        } catch (Exception e) {
+            return "unknown";
         }
     }
 
-    // TODO: Move the the function body to `parseFile()` to print
-    //       the error file name and line?
-    public int parseCommand(
-        String command,
-        String filePath,
-        int    line
+    // Interactive requests are checked on the calling thread, so they do
+    // not queue behind the tasks of bulk ones in `workers`.
+    //
+    // An entry is a file or a datapack root directory. The function
+    // directories of a datapack are walked in parallel and every file is
+    // checked as soon as the walk finds it, see `Datapack`.
+    //
+    // response:
+    //     diagnostics             sent after every file with errors,
+    //     <diagnostic-lines>      in the order the files were requested,
+    //     ...                     datapack files in name order
+    //     done status=<status> files=<n> failed=<n> errors=<n> hits=<n> misses=<n>
+    //
+    // With `format=jsonl` the diagnostic lines are JSON objects instead,
+    // see `Diagnostic.renderJson()`. Every line names its file, so the
+    // lines of several files are sent together in frames of about
+    // `BATCH_SIZE` characters.
+    //
+    // <status> is `success`, `failed`, `cancelled` or `timed-out`. Files
+    // that were not reached before a cancellation are not counted in
+    // `failed` and `errors`. `hits` and `misses` count the files found and
+    // not found in the check cache
+    public void parseFiles(
+        Request    request,
+        Path       cwd,
+        String[]   entries,
+        SocketPipe pipe
     ) throws Exception {
-        var results = this.dispatcher.invoke(
-            sig("parse", String.class, Object.class),
-            command,
-            this.server.invoke(sig("createCommandSourceStack")).object
-        );
+        refresh();
+        var parallel = request.priority == Scheduler.Priority.BULK
+            && this.workers != null
+            && (entries.length > 1 || Datapack.isPack(cwd.resolve(entries[0])));
 
+        var archives = new ArrayList<FileSystem>();
         try {
-            invokeStatic(
-                "net.minecraft.commands.Commands",
-                sig("validateParseResults", results.object.getClass()),
-                results.object
-            );
+            // Everything is started before the first result is awaited, so
+            // files are checked concurrently, but their output is sent in
+            // the order they were requested
+            var pending = new ArrayList<Object>(entries.length);
+            for (var entry : entries) {
+                var path = cwd.resolve(entry);
+                if (Datapack.isArchive(path)) {
+                    var archive = Datapack.openArchive(path);
+                    archives.add(archive);
+                    var root = archive.getRootDirectories().iterator().next();
+                    pending.add(walk(request, root, entry + "!", true, parallel));
+                } else if (Files.isDirectory(path)) {
+                    pending.add(walk(request, path, entry, true, parallel));
+                } else {
+                    pending.add(check(request, path, entry, parallel));
+                }
+            }
 
-            var commandContext = results
-                .invoke(sig("getContext"))
-                .invoke(sig("build", String.class), command)
-                .object;
+            var summary = new Summary();
+            send(request, pending, pipe, summary);
+            if (request.jsonl) flushBatch(pipe, summary.out);
+
+            var start = Metrics.now();
 
-            var result = (Optional) invokeStatic(
-                "com.mojang.brigadier.context.ContextChain",
-                sig("tryFlatten", commandContext.getClass()),
-                commandContext
-            ).object;
-
-            if (!result.isPresent()) {
-                throw (Throwable) getStatic(
-                    "com.mojang.brigadier.exceptions.CommandSyntaxException",
-                    "BUILT_IN_EXCEPTIONS"
-                )
-                .invoke(sig("dispatcherUnknownCommand"))
-                .invoke(
-                    sig("createWithContext"),
-                    results.invoke(sig("getReader")).object
-                ).object;
+            String status;
+            if (request.isStopped()) {
+                status = request.status().code;
+            } else if (summary.errors == 0) {
+                status = "success";
+            } else {
+                status = "failed";
             }
-        } catch (InvocationTargetException t) {
-            var e = new ObjectWrapper(t.getCause());
 
-            var msg = (String) e
-                .invoke(sig("getRawMessage"))
-                .invoke(sig("getString"))
-                .object;
-            this.pipe.write(String.format(
-                "%s:%d: %s\n",
-                filePath, line,
-                msg
+            pipe.write(String.format(
+                "done status=%s files=%d failed=%d errors=%d hits=%d misses=%d",
+                status, summary.files, summary.failed, summary.errors,
+                request.cacheHits.get(), request.cacheMisses.get()
             ));
+            this.metrics.record(Metrics.Phase.TRANSFER, start);
+        } finally {
+            for (var archive : archives) archive.close();
+        }
+    }
+
+    static final class Summary {
+        int files  = 0;
+        int failed = 0;
+        int errors = 0;
+        final StringBuilder out = new StringBuilder();
+    }
+
+    // A file check or a directory walk. `path` may be inside an archive,
+    // `shownPath` is how it is named in diagnostics. `task` is `null` if
+    // the request is checked sequentially, then the work is done when it
+    // is sent
+    static record FileCheck(
+        Path                           path,
+        String                         shownPath,
+        ForkJoinTask<List<Diagnostic>> task
+    ) {}
+
+    static record DirWalk(
+        Path                           dir,
+        String                         shownDir,
+        boolean                        root,
+        ForkJoinTask<List<Object>>     task
+    ) {}
+
+    FileCheck check(Request request, Path path, String shownPath, boolean parallel) {
+        return new FileCheck(
+            path, shownPath,
+            parallel ? this.workers.submit(() -> parseFile(request, path)) : null
+        );
+    }
+
+    DirWalk walk(
+        Request request,
+        Path    dir,
+        String  shownDir,
+        boolean root,
+        boolean parallel
+    ) {
+        var walk = new DirWalk(dir, shownDir, root, null);
+        if (!parallel) return walk;
+        return new DirWalk(
+            dir, shownDir, root,
+            this.workers.submit(() -> list(request, walk, true))
+        );
+    }
+
+    // Starts a check for every function file and a walk for every
+    // subdirectory of `walk`
+    List<Object> list(Request request, DirWalk walk, boolean parallel) throws Exception {
+        if (request.isStopped()) return List.of();
+
+        if (walk.root() && !Datapack.isRoot(walk.dir())) {
+            throw new IOException("not a datapack (no 'data' directory): " + walk.shownDir());
+        }
+
+        var pending = new ArrayList<Object>();
+        var children = walk.root()
+            ? Datapack.functionDirs(walk.dir())
+            : Datapack.list(walk.dir());
+        for (var child : children) {
+            // Separators of archive paths are always `/`
+            var shown = walk.shownDir() + "/" + walk.dir().relativize(child);
+            if (Files.isDirectory(child)) {
+                pending.add(walk(request, child, shown, false, parallel));
+            } else if (Datapack.isFunction(child)) {
+                pending.add(check(request, child, shown, parallel));
+            }
+        }
+        return pending;
+    }
+
+    void send(
+        Request      request,
+        List<Object> pending,
+        SocketPipe   pipe,
+        Summary      summary
+    ) throws Exception {
+        for (int i = 0; i < pending.size(); i++) {
+            if (pending.get(i) instanceof FileCheck check) {
+                var diagnostics = check.task() != null
+                    ? await(check.task())
+                    : parseFile(request, check.path());
+                summary.files += 1;
+                if (!diagnostics.isEmpty()) summary.failed += 1;
+                summary.errors += diagnostics.size();
+                if (request.jsonl) {
+                    batch(pipe, check.shownPath(), diagnostics, summary.out);
+                } else {
+                    flush(pipe, check.shownPath(), diagnostics, summary.out);
+                }
+            } else {
+                var walk = (DirWalk) pending.get(i);
+                var children = walk.task() != null
+                    ? await(walk.task())
+                    : list(request, walk, false);
+                send(request, children, pipe, summary);
+            }
+            pending.set(i, null);
+        }
+    }
+
+    // `out` is reused between the files of a request
+    void flush(
+        SocketPipe       pipe,
+        String           filePath,
+        List<Diagnostic> diagnostics,
+        StringBuilder    out
+    ) throws Exception {
+        if (diagnostics.isEmpty()) return;
+
+        out.setLength(0);
+        out.append("diagnostics\n");
+        for (var d : diagnostics) {
+            d.render(filePath, out);
+        }
+        var start = Metrics.now();
+        pipe.write(out.toString());
+        this.metrics.record(Metrics.Phase.TRANSFER, start);
+    }
+
+    // Size of the frames `format=jsonl` diagnostics are sent in
+    static final int BATCH_SIZE = 1 << 16;
+
+    // Appends to the frame being built in `out` and sends it once it is
+    // `BATCH_SIZE` characters long
+    void batch(
+        SocketPipe       pipe,
+        String           filePath,
+        List<Diagnostic> diagnostics,
+        StringBuilder    out
+    ) throws Exception {
+        if (diagnostics.isEmpty()) return;
+
+        if (out.length() == 0) out.append("diagnostics\n");
+        for (var d : diagnostics) {
+            d.renderJson(filePath, out);
+        }
+        if (out.length() >= BATCH_SIZE) flushBatch(pipe, out);
+    }
+
+    void flushBatch(SocketPipe pipe, StringBuilder out) throws Exception {
+        if (out.length() == 0) return;
+        var start = Metrics.now();
+        pipe.write(out.toString());
+        this.metrics.record(Metrics.Phase.TRANSFER, start);
+        out.setLength(0);
+    }
 
-            var input = (String) e.invoke(sig("getInput")).object;
-            var cursor = (int) e.invoke(sig("getCursor")).object;
-            if (input != null && cursor >= 0) {
-                int a = Math.min(input.length(), cursor);
-                var sb = new StringBuilder();
+    // Files smaller than a chunk are read into memory. Bigger ones are
+    // mapped and checked in chunks if there are workers, and streamed
+    // line by line otherwise, which is also how entries of an archive
+    // (they cannot be mapped) and files over 2 GiB are checked
+    public List<Diagnostic> parseFile(Request request, Path path) throws Exception {
+        if (request.isStopped()) return List.of();
 
-                sb.append("    ");
-                if (a > 10) {
-                    sb.append("...");
+        var size = Files.size(path);
+        var chunked = this.workers != null
+            && size >= this.chunkSize
+            && size <= Integer.MAX_VALUE
+            && path.getFileSystem() == FileSystems.getDefault();
+
+        // Streamed files are read while they are checked, so only the
+        // other ones are timed
+        ByteBuffer content = null;
+        if (chunked || size < this.chunkSize) {
+            var start = Metrics.now();
+            if (chunked) {
+                try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
                 }
+            } else {
+                content = ByteBuffer.wrap(Files.readAllBytes(path));
+            }
+            this.metrics.record(Metrics.Phase.FILE_IO, start);
+        }
+
+        CheckCache.Key key = null;
+        if (this.cache != null) {
+            key = content != null ? this.cache.key(content) : this.cache.key(path);
+            var cached = this.cache.get(key);
+            if (cached != null) {
+                request.cacheHits.incrementAndGet();
+                return cached;
+            }
+            request.cacheMisses.incrementAndGet();
+        }
+
+        List<Diagnostic> diagnostics;
+        if (content == null) {
+            diagnostics = parseStream(request, path);
+        } else if (chunked) {
+            diagnostics = parseChunks(request, content);
+        } else {
+            diagnostics = parseLines(request, decode(content), 0);
+        }
+
+        // The diagnostics of a stopped request may be incomplete
+        if (key != null && !request.isStopped()) {
+            this.cache.put(key, diagnostics);
+        }
+
+        return diagnostics;
+    }
+
+    // Large files are memory-mapped and split at line boundaries into
+    // `chunkSize` pieces. The line count of every chunk is computed first,
+    // so each chunk knows the number of its first line and the chunks can
+    // be checked concurrently while the output keeps the file order
+    List<Diagnostic> parseChunks(Request request, ByteBuffer content) throws Exception {
+        var bounds = new ArrayList<Integer>();
+        bounds.add(0);
+        int size = content.limit();
+        int pos = this.chunkSize;
+        while (pos < size) {
+            while (pos < size && !endsLine(content, pos - 1)) pos++;
+            if (pos == size) break;
+            bounds.add(pos);
+            pos += this.chunkSize;
+        }
+        bounds.add(size);
 
-                sb.append(input.substring(Math.max(0, a - 10), a));
-                if (a < input.length()) {
-                    sb.append(input.substring(a));
+        int chunkCount = bounds.size() - 1;
+        var lineCounts = new ArrayList<ForkJoinTask<Integer>>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            int begin = bounds.get(i), end = bounds.get(i + 1);
+            lineCounts.add(this.workers.submit(() -> {
+                int count = 0;
+                for (int j = begin; j < end; j++) {
+                    if (endsLine(content, j)) count += 1;
                 }
+                return count;
+            }));
+        }
 
-                sb.append("<--[HERE]\n");
+        var tasks = new ArrayList<ForkJoinTask<List<Diagnostic>>>(chunkCount);
+        int line = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            int begin = bounds.get(i), end = bounds.get(i + 1);
+            int firstLine = line;
+            tasks.add(this.workers.submit(() -> parseLines(
+                request,
+                decode(content.slice(begin, end - begin)),
+                firstLine
+            )));
+            line += await(lineCounts.get(i));
+        }
 
-                this.pipe.write(sb.toString());
+        var diagnostics = new ArrayList<Diagnostic>();
+        for (var task : tasks) {
+            diagnostics.addAll(await(task));
+        }
+
+        return diagnostics;
+    }
+
+    // Lines end like in `parseLines()`: at `\n`, and at a `\r` that is
+    // not followed by one. So a `\r\n` is never split between chunks
+    static boolean endsLine(ByteBuffer content, int i) {
+        var b = content.get(i);
+        return b == '\n' || b == '\r' && (i + 1 == content.limit() || content.get(i + 1) != '\n');
+    }
+
+    // Decoding buffers are kept per thread unless they grew too big
+    static final int MAX_KEPT_DECODE_BUFFER = 1 << 22;
+    static final ThreadLocal<CharBuffer> decodeBuffers =
+        ThreadLocal.withInitial(() -> CharBuffer.allocate(8192));
+
+    // The returned buffer is only valid until the next call on this thread
+    static CharBuffer decode(ByteBuffer bytes) {
+        var text = decodeBuffers.get();
+        // UTF-8 never decodes to more chars than it has bytes
+        if (text.capacity() < bytes.remaining()) {
+            text = CharBuffer.allocate(bytes.remaining());
+            if (text.capacity() <= MAX_KEPT_DECODE_BUFFER) decodeBuffers.set(text);
+        }
+
+        var decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        text.clear();
+        decoder.decode(bytes.duplicate(), text, true);
+        decoder.flush(text);
+        return text.flip();
+    }
+
+    // `line` is the number of lines that precede `text`. Lines end with
+    // `\n`, `\r\n` or `\r` like in `BufferedReader.readLine()`.
+    // Stops early if the request is cancelled or times out
+    List<Diagnostic> parseLines(
+        Request    request,
+        CharBuffer text,
+        int        line
+    ) throws Exception {
+        var diagnostics = new ArrayList<Diagnostic>();
+        var source = source(request);
+        var chars = text.array();
+        var pos = text.arrayOffset() + text.position();
+        var end = pos + text.remaining();
+        while (pos < end && !request.isStopped()) {
+            var lineEnd = pos;
+            while (lineEnd < end && chars[lineEnd] != '\n' && chars[lineEnd] != '\r') {
+                lineEnd++;
             }
 
-            return 1;
+            // Trimmed like `String.trim()`, without creating the untrimmed line
+            var begin = pos;
+            var trimmedEnd = lineEnd;
+            while (begin < trimmedEnd && chars[begin] <= ' ')          begin++;
+            while (trimmedEnd > begin && chars[trimmedEnd - 1] <= ' ') trimmedEnd--;
+
+            pos = lineEnd + 1;
+            if (lineEnd < end && chars[lineEnd] == '\r' && pos < end && chars[pos] == '\n') {
+                pos++;
+            }
+
+            line += 1;
+            if (begin == trimmedEnd)  continue;
+            if (chars[begin] == '#') continue;
+
+            var command = new String(chars, begin, trimmedEnd - begin);
+            var diagnostic = checkCommand(command, line, source);
+            if (diagnostic != null) diagnostics.add(diagnostic);
+        }
+
+        return diagnostics;
+    }
+
+    // Like `parseLines()`, for files that are not held in memory. Bytes
+    // that are not UTF-8 are replaced like in `decode()`
+    List<Diagnostic> parseStream(Request request, Path path) throws Exception {
+        var diagnostics = new ArrayList<Diagnostic>();
+        var source = source(request);
+        try (var reader = new BufferedReader(
+            new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8)
+        )) {
+            int line = 0;
+            String text;
+            while (!request.isStopped() && (text = reader.readLine()) != null) {
+                line += 1;
+                var command = text.trim();
+                if (command.isEmpty())        continue;
+                if (command.charAt(0) == '#') continue;
+
+                var diagnostic = checkCommand(command, line, source);
+                if (diagnostic != null) diagnostics.add(diagnostic);
+            }
+        }
+
+        return diagnostics;
+    }
+
+    static <T> T await(ForkJoinTask<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            // Errors like `OutOfMemoryError` are passed on as they are
+            var cause = e.getCause();
+            if (cause instanceof Error error)         throw error;
+            if (cause instanceof Exception exception) throw exception;
+            throw e;
+        }
+    }
+
+    // Like `parseCommand()`, but remembers the outcome in `commandCache`
+    public Diagnostic checkCommand(String command, int line, Object source) throws Exception {
+        if (this.commandCache == null) return parseCommand(command, line, source);
+
+        var outcome = this.commandCache.get(command);
+        if (outcome == null) {
+            outcome = parseCommand(command, line, source);
+            this.commandCache.put(command, outcome == null ? CommandCache.VALID : outcome);
+            return outcome;
+        }
+
+        return outcome == CommandCache.VALID ? null : outcome.atLine(line);
+    }
+
+    // Only root literals the server's source may use are indexed, the
+    // others are unknown to it. Trees with other root nodes, which some
+    // mods add, are not indexed
+    RootIndex indexRoots() {
+        try {
+            var literal = findClass("com.mojang.brigadier.tree.LiteralCommandNode");
+            var source = createSource();
+            var names = new ArrayList<String>();
+            var children = (Collection<?>) this.dispatcher
+                .invoke(sig("getRoot"))
+                .invoke(sig("getChildren"))
+                .object;
+            for (var child : children) {
+                if (!literal.isInstance(child)) return null;
+                var node = new ObjectWrapper(child);
+                if ((boolean) node.invoke(sig("canUse", Object.class), source).object) {
+                    names.add((String) node.invoke(sig("getName")).object);
+                }
+            }
+
+            var reader = findClass("com.mojang.brigadier.StringReader")
+                .getConstructor(String.class)
+                .newInstance("");
+            var message = diagnostic(unknownCommand(reader), 0).message();
+            return new RootIndex(names, message);
+        } catch (Exception e) {
+            System.err.println("warning: could not index the command tree: " + e);
+            return null;
+        }
+    }
+
+    // Suggestions for `command` with the cursor at `cursor`. Only the text
+    // before the cursor matters, so it is the key of `completionCache`
+    public List<Suggestion> complete(String command, int cursor, Object source) throws Exception {
+        var prefix = command.substring(0, cursor);
+        if (this.completionCache != null) {
+            var suggestions = this.completionCache.get(prefix);
+            if (suggestions != null) return suggestions;
+        }
+
+        CompletableFuture<?> future;
+        try {
+            var results = (Object) this.parse.invokeExact(
+                this.dispatcher.object,
+                (Object) prefix,
+                source
+            );
+            future = (CompletableFuture<?>) (Object) this.getCompletionSuggestions.invokeExact(
+                this.dispatcher.object,
+                results,
+                (Object) cursor
+            );
+        } catch (Throwable t) {
+            throw targetException(t);
+        }
+
+        var suggestions = new ArrayList<Suggestion>();
+        var list = (List<?>) new ObjectWrapper(future.get()).invoke(sig("getList")).object;
+        for (var item : list) {
+            var suggestion = new ObjectWrapper(item);
+            var range = suggestion.invoke(sig("getRange"));
+            suggestions.add(new Suggestion(
+                (int) range.invoke(sig("getStart")).object,
+                (int) range.invoke(sig("getEnd")).object,
+                (String) suggestion.invoke(sig("getText")).object
+            ));
+        }
+
+        var result = List.copyOf(suggestions);
+        if (this.completionCache != null) this.completionCache.put(prefix, result);
+        return result;
+    }
+
+    // Returns `null` if the command is valid
+    public Diagnostic parseCommand(String command, int line, Object source) throws Exception {
+        return parseCommand(command, line, source, this.metrics);
+    }
+
+    // `metrics` is another than the parser's for runs that are not
+    // requests, see `Bench`
+    Diagnostic parseCommand(String command, int line, Object source, Metrics metrics) throws Exception {
+        // Every command is counted by the lookup, so the counts of the
+        // other phases can be compared to it
+        var start = Metrics.now();
+        var roots = this.roots;
+        if (roots != null) {
+            var known = roots.isKnown(command);
+            start = metrics.record(Metrics.Phase.ROOT_INDEX, start);
+            if (!known) return new Diagnostic(line, roots.unknownCommandMessage, command, 0);
+        }
+
+        // A phase that throws is recorded as what it was, the rendering of
+        // its error is recorded on its own
+        var phase = Metrics.Phase.PARSE;
+        Object results = null;
+        try {
+            results = (Object) this.parse.invokeExact(
+                this.dispatcher.object,
+                (Object) command,
+                source
+            );
+            start = metrics.record(phase, start);
+
+            phase = Metrics.Phase.VALIDATE;
+            var unused = (Object) this.validateParseResults.invokeExact(results);
+            start = metrics.record(phase, start);
+
+            phase = Metrics.Phase.BUILD_CONTEXT;
+            var context = (Object) this.build.invokeExact(
+                (Object) this.getContext.invokeExact(results),
+                (Object) command
+            );
+            start = metrics.record(phase, start);
+
+            phase = Metrics.Phase.FLATTEN;
+            var chain = (Optional<?>) (Object) this.tryFlatten.invokeExact(context);
+            start = metrics.record(phase, start);
+            if (chain.isPresent()) return null;
+
+            // e.g. `execute as @a` without `run`
+            var reader = new ObjectWrapper(results).invoke(GET_READER).object;
+            var diagnostic = diagnostic(unknownCommand(reader), line);
+            metrics.record(Metrics.Phase.ERROR_RENDERING, start);
+            return diagnostic;
         } catch (Throwable t) {
+            if (this.syntaxException.isInstance(t)) {
+                start = metrics.record(phase, start);
+                var diagnostic = diagnostic(t, line);
+                metrics.record(Metrics.Phase.ERROR_RENDERING, start);
+                return diagnostic;
+            }
+
             System.out.println("UNREACHABLE");
             t.printStackTrace();
         }
 
-        return 0;
+        return null;
+    }
+
+    // The exception brigadier throws for unknown commands at `reader`
+    static Object unknownCommand(Object reader) throws Exception {
+        return getStatic(
+            "com.mojang.brigadier.exceptions.CommandSyntaxException",
+            "BUILT_IN_EXCEPTIONS"
+        )
+        .invoke(DISPATCHER_UNKNOWN_COMMAND)
+        .invoke(
+            sig(
+                "createWithContext",
+                findClass("com.mojang.brigadier.ImmutableStringReader")
+            ),
+            reader
+        ).object;
+    }
+
+    Diagnostic diagnostic(Object e, int line) throws Exception {
+        try {
+            var msg = (String) (Object) this.getString.invokeExact(
+                (Object) this.getRawMessage.invokeExact(e)
+            );
+            var input = (String) (Object) this.getInput.invokeExact(e);
+            var cursor = (int) (Object) this.getCursor.invokeExact(e);
+            return new Diagnostic(line, msg, input, cursor);
+        } catch (Throwable t) {
+            throw targetException(t);
+        }
     }
 }
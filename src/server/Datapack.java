@@ -0,0 +1,64 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Layout of a datapack directory or `.zip` archive:
+//     <root>/data/<namespace>/function/**/*.mcfunction
+//
+// Before 1.21 the function directory is called `functions`, both are
+// checked. Directories are listed in name order, so a datapack is always
+// reported in the same order however its walk is scheduled
+public class Datapack {
+    static final String[] FUNCTION_DIRS = { "function", "functions" };
+    static final String   EXTENSION     = ".mcfunction";
+
+    // A datapack directory or archive, as opposed to a single file
+    public static boolean isPack(Path path) {
+        return Files.isDirectory(path) || isArchive(path);
+    }
+
+    public static boolean isArchive(Path path) {
+        return path.getFileName() != null
+            && path.getFileName().toString().endsWith(".zip")
+            && Files.isRegularFile(path);
+    }
+
+    // Entries are read straight from the archive, nothing is extracted.
+    // The file system has to be closed
+    public static FileSystem openArchive(Path path) throws IOException {
+        return FileSystems.newFileSystem(path, (ClassLoader) null);
+    }
+
+    public static boolean isRoot(Path path) {
+        return Files.isDirectory(path.resolve("data"));
+    }
+
+    public static boolean isFunction(Path path) {
+        return path.getFileName().toString().endsWith(EXTENSION)
+            && Files.isRegularFile(path);
+    }
+
+    // The function directories of every namespace
+    public static List<Path> functionDirs(Path root) throws IOException {
+        var dirs = new ArrayList<Path>();
+        for (var namespace : list(root.resolve("data"))) {
+            for (var name : FUNCTION_DIRS) {
+                var dir = namespace.resolve(name);
+                if (Files.isDirectory(dir)) dirs.add(dir);
+            }
+        }
+        return dirs;
+    }
+
+    public static List<Path> list(Path dir) throws IOException {
+        try (var entries = Files.list(dir)) {
+            return entries.sorted().toList();
+        }
+    }
+}
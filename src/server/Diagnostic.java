@@ -0,0 +1,56 @@
+package server;
+
+import utils.Json;
+
+// `input` is the command and `cursor` the position of the error in it,
+// `input` is `null` and `cursor` negative if the error has no position
+public record Diagnostic(int line, String message, String input, int cursor) {
+    public Diagnostic atLine(int line) {
+        return new Diagnostic(line, message, input, cursor);
+    }
+
+    public void render(String filePath, StringBuilder out) {
+        // <file>:<line>: <message>
+        out.append(filePath).append(':').append(line).append(": ")
+           .append(message).append('\n');
+
+        if (input != null && cursor >= 0) {
+            int a = Math.min(input.length(), cursor);
+            out.append("    ");
+            if (a > 10) {
+                out.append("...");
+            }
+
+            out.append(input, Math.max(0, a - 10), input.length());
+            out.append("<--[HERE]\n");
+        }
+    }
+
+    // {"file":<file>,"line":<n>,"column":<n>,"message":<message>,"command":<command>}
+    //
+    // `column` counts from 1 in `command`, which is the line without its
+    // indentation. Both are `null` if the error has no position
+    public void renderJson(String filePath, StringBuilder out) {
+        out.append("{\"file\":");
+        Json.writeString(filePath, out);
+        out.append(",\"line\":").append(line);
+
+        var positioned = input != null && cursor >= 0;
+        out.append(",\"column\":");
+        if (positioned) {
+            out.append(Math.min(input.length(), cursor) + 1);
+        } else {
+            out.append("null");
+        }
+
+        out.append(",\"message\":");
+        Json.writeString(message, out);
+        out.append(",\"command\":");
+        if (positioned) {
+            Json.writeString(input, out);
+        } else {
+            out.append("null");
+        }
+        out.append("}\n");
+    }
+}
@@ -0,0 +1,302 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import utils.Json;
+import utils.SocketPipe;
+import static utils.Json.object;
+
+// Language Server Protocol front end. After an `lsp` request every frame
+// in both directions is one JSON-RPC message; the client's `-lsp` mode
+// bridges them to an editor's stdio.
+//
+// Documents are synced incrementally and kept in memory as lines together
+// with the outcome of every line, so an edit validates only the lines it
+// touched. Diagnostics of the whole document are published after every
+// change, as the protocol requires.
+public class LanguageServer {
+    static final int SYNC_INCREMENTAL = 2;
+    static final int SEVERITY_ERROR   = 1;
+    static final int METHOD_NOT_FOUND = -32601;
+    static final int INVALID_PARAMS   = -32602;
+
+    static final class Document {
+        final ArrayList<String>     lines = new ArrayList<>();
+        // `null` for lines without errors
+        final ArrayList<Diagnostic> diagnostics = new ArrayList<>();
+        Object version;
+    }
+
+    final CommandParser parser;
+    final Scheduler     scheduler;
+    final SocketPipe    pipe;
+    final HashMap<String, Document> documents = new HashMap<>();
+    final StringBuilder out = new StringBuilder();
+    Object source;
+
+    public LanguageServer(CommandParser parser, Scheduler scheduler, SocketPipe pipe) {
+        this.parser = parser;
+        this.scheduler = scheduler;
+        this.pipe = pipe;
+    }
+
+    // Returns when the client sends `exit` or disconnects
+    @SuppressWarnings("unchecked")
+    public void serve() throws Exception {
+        String frame;
+        while ((frame = this.pipe.read()) != null) {
+            Map<String, Object> message;
+            try {
+                message = (Map<String, Object>) Json.parse(frame);
+            } catch (IllegalArgumentException | ClassCastException e) {
+                System.err.println("warning: ignoring LSP message: " + e.getMessage());
+                continue;
+            }
+
+            // Responses to our requests, we do not send any
+            var method = (String) message.get("method");
+            if (method == null) continue;
+
+            var id = message.get("id");
+            var params = (Map<String, Object>) message.get("params");
+            try {
+                switch (method) {
+                case "initialize":
+                    respond(id, object(
+                        "capabilities", object(
+                            "textDocumentSync", SYNC_INCREMENTAL,
+                            "completionProvider", object()
+                        ),
+                        "serverInfo", object("name", "mcsc", "version", this.parser.version())
+                    ));
+                    break;
+
+                case "textDocument/didOpen":
+                    open(params);
+                    break;
+
+                case "textDocument/didChange":
+                    change(params);
+                    break;
+
+                case "textDocument/didClose":
+                    var uri = (String) document(params).get("uri");
+                    this.documents.remove(uri);
+                    publish(uri, null);
+                    break;
+
+                case "textDocument/completion":
+                    respond(id, complete(params));
+                    break;
+
+                case "shutdown":
+                    respond(id, null);
+                    break;
+
+                case "exit":
+                    return;
+
+                default:
+                    // Notifications we do not handle are ignored
+                    if (id != null) error(id, METHOD_NOT_FOUND, "unknown method " + method);
+                }
+            } catch (ClassCastException | NullPointerException | IndexOutOfBoundsException e) {
+                if (id != null) error(id, INVALID_PARAMS, "invalid params: " + e);
+                else System.err.println("warning: ignoring " + method + ": " + e);
+            }
+        }
+    }
+
+    void open(Map<String, Object> params) throws Exception {
+        var item = document(params);
+        var uri = (String) item.get("uri");
+        var document = new Document();
+        document.version = item.get("version");
+        this.documents.put(uri, document);
+
+        var lines = ((String) item.get("text")).split("\r\n|\r|\n", -1);
+        for (var line : lines) {
+            document.lines.add(line);
+            document.diagnostics.add(null);
+        }
+        validate(document, 0, lines.length);
+        publish(uri, document);
+    }
+
+    // A change without a range replaces the whole document
+    @SuppressWarnings("unchecked")
+    void change(Map<String, Object> params) throws Exception {
+        var uri = (String) document(params).get("uri");
+        var document = this.documents.get(uri);
+        if (document == null) return;
+        document.version = document(params).get("version");
+
+        for (var c : (List<Object>) params.get("contentChanges")) {
+            var change = (Map<String, Object>) c;
+            var text = (String) change.get("text");
+            var range = (Map<String, Object>) change.get("range");
+
+            int startLine, startChar, endLine, endChar;
+            if (range == null) {
+                startLine = 0;
+                startChar = 0;
+                endLine = document.lines.size() - 1;
+                endChar = document.lines.get(endLine).length();
+            } else {
+                var start = (Map<String, Object>) range.get("start");
+                var end = (Map<String, Object>) range.get("end");
+                startLine = integer(start, "line");
+                startChar = integer(start, "character");
+                endLine = integer(end, "line");
+                endChar = integer(end, "character");
+            }
+
+            // Positions past the end are clamped like the protocol says
+            if (endLine >= document.lines.size()) {
+                endLine = document.lines.size() - 1;
+                endChar = document.lines.get(endLine).length();
+            }
+            var first = document.lines.get(startLine);
+            var last = document.lines.get(endLine);
+            var replaced = first.substring(0, Math.min(startChar, first.length()))
+                + text
+                + last.substring(Math.min(endChar, last.length()));
+            var lines = replaced.split("\r\n|\r|\n", -1);
+
+            var removed = document.lines.subList(startLine, endLine + 1);
+            removed.clear();
+            removed.addAll(List.of(lines));
+            var removedDiagnostics = document.diagnostics.subList(startLine, endLine + 1);
+            removedDiagnostics.clear();
+            for (int i = 0; i < lines.length; i++) removedDiagnostics.add(null);
+
+            validate(document, startLine, lines.length);
+        }
+
+        publish(uri, document);
+    }
+
+    // Validates `count` lines starting at `from`, lines are trimmed and
+    // comments skipped like in files
+    void validate(Document document, int from, int count) throws Exception {
+        this.scheduler.run(Scheduler.Priority.INTERACTIVE, this.pipe, () -> {
+            this.parser.refresh();
+            if (this.source == null) this.source = this.parser.createSource();
+            for (int i = from; i < from + count; i++) {
+                var command = document.lines.get(i).trim();
+                var diagnostic = command.isEmpty() || command.charAt(0) == '#'
+                    ? null
+                    : this.parser.checkCommand(command, i + 1, this.source);
+                document.diagnostics.set(i, diagnostic);
+            }
+        });
+    }
+
+    // Completions of the line at the position, the command starts after
+    // the line's indentation
+    @SuppressWarnings("unchecked")
+    List<Object> complete(Map<String, Object> params) throws Exception {
+        var document = this.documents.get((String) document(params).get("uri"));
+        var position = (Map<String, Object>) params.get("position");
+        var lineNumber = integer(position, "line");
+        var items = new ArrayList<Object>();
+        if (document == null || lineNumber >= document.lines.size()) return items;
+
+        var line = document.lines.get(lineNumber);
+        var indent = 0;
+        while (indent < line.length() && line.charAt(indent) <= ' ') indent++;
+        var command = line.substring(indent);
+        if (command.startsWith("#")) return items;
+        var cursor = Math.max(0, Math.min(integer(position, "character") - indent, command.length()));
+
+        var suggestions = new ArrayList<Suggestion>();
+        this.scheduler.run(Scheduler.Priority.INTERACTIVE, this.pipe, () -> {
+            this.parser.refresh();
+            if (this.source == null) this.source = this.parser.createSource();
+            suggestions.addAll(this.parser.complete(command, cursor, this.source));
+        });
+
+        for (var suggestion : suggestions) {
+            items.add(object(
+                "label", suggestion.text(),
+                "textEdit", object(
+                    "range", object(
+                        "start", object("line", lineNumber, "character", indent + suggestion.start()),
+                        "end", object("line", lineNumber, "character", indent + suggestion.end())
+                    ),
+                    "newText", suggestion.text()
+                )
+            ));
+        }
+        return items;
+    }
+
+    // An error spans from its cursor to the end of the line, errors
+    // without a position span the whole line. `document` is `null` for
+    // closed documents, which clears their diagnostics
+    void publish(String uri, Document document) throws Exception {
+        var items = new ArrayList<Object>();
+        if (document != null) {
+            for (int i = 0; i < document.diagnostics.size(); i++) {
+                var d = document.diagnostics.get(i);
+                if (d == null) continue;
+
+                var line = document.lines.get(i);
+                var indent = 0;
+                while (indent < line.length() && line.charAt(indent) <= ' ') indent++;
+                var start = d.input() == null
+                    ? indent
+                    : Math.min(indent + d.cursor(), line.length());
+                var end = Math.max(start, line.stripTrailing().length());
+
+                items.add(object(
+                    "range", object(
+                        "start", object("line", i, "character", start),
+                        "end", object("line", i, "character", end)
+                    ),
+                    "severity", SEVERITY_ERROR,
+                    "source", "mcsc",
+                    "message", d.message()
+                ));
+            }
+        }
+
+        var params = object("uri", uri, "diagnostics", items);
+        if (document != null && document.version != null) params.put("version", document.version);
+        send(object(
+            "jsonrpc", "2.0",
+            "method", "textDocument/publishDiagnostics",
+            "params", params
+        ));
+    }
+
+    void respond(Object id, Object result) throws Exception {
+        send(object("jsonrpc", "2.0", "id", id, "result", result));
+    }
+
+    void error(Object id, int code, String message) throws Exception {
+        send(object(
+            "jsonrpc", "2.0",
+            "id", id,
+            "error", object("code", code, "message", message)
+        ));
+    }
+
+    void send(Map<String, Object> message) throws Exception {
+        this.out.setLength(0);
+        Json.write(message, this.out);
+        this.pipe.write(this.out.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> document(Map<String, Object> params) {
+        return (Map<String, Object>) params.get("textDocument");
+    }
+
+    static int integer(Map<String, Object> object, String key) {
+        return ((Number) object.get(key)).intValue();
+    }
+}
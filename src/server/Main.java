@@ -1,12 +1,97 @@
 package server;
 
 import java.util.Arrays;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 
-import utils.FilePipe;
+import utils.SocketPipe;
+import static server.ObjectWrapper.MethodSignature.*;
 
 public class Main {
+    // Number of files checked in parallel, `-Dmcsc.threads=1` disables it
+    static final int THREADS = Integer.getInteger(
+        "mcsc.threads",
+        Runtime.getRuntime().availableProcessors()
+    );
+
+    // Files of at least this many bytes are checked in parallel chunks
+    static final int CHUNK_SIZE = Integer.getInteger("mcsc.chunkSize", 1 << 20);
+
+    // Number of requests checked at the same time
+    static final int MAX_REQUESTS = Integer.getInteger("mcsc.maxRequests", 4);
+
+    // Requests with at most this many files are served before bigger ones
+    static final int INTERACTIVE_FILES = Integer.getInteger("mcsc.interactiveFiles", 8);
+
+    // Where the diagnostics of checked files are kept between restarts,
+    // `-Dmcsc.cache=` disables the cache
+    static final String CACHE_PATH = System.getProperty("mcsc.cache", "mcsc-cache.bin");
+
+    // The least recently used files are dropped from the cache above this
+    static final int CACHE_ENTRIES = Integer.getInteger("mcsc.cacheEntries", 100_000);
+
+    // The cache file is rewritten this often if something was added
+    static final int CACHE_SAVE_SECONDS = 30;
+
+    // Number of distinct commands whose outcome is remembered,
+    // `-Dmcsc.commandCache=0` disables it
+    static final int COMMAND_CACHE = Integer.getInteger("mcsc.commandCache", 65536);
+
+    // Number of command prefixes whose completions are remembered,
+    // `-Dmcsc.completionCache=0` disables it
+    static final int COMPLETION_CACHE = Integer.getInteger("mcsc.completionCache", 4096);
+
+    // Changes to watched files that come within this many milliseconds of
+    // each other are checked together
+    static final int WATCH_DEBOUNCE = Integer.getInteger("mcsc.watchDebounce", 200);
+
+    // With `-Dmcsc.headless=true` the dedicated server is never started:
+    // the checker takes over the main thread as soon as the command tree
+    // is loaded, see `initHeadless()`. Needs a launcher built with the
+    // headless bootstrap, which Build.java adds for versions that load
+    // a `WorldStem`
+    static final boolean HEADLESS = Boolean.getBoolean("mcsc.headless");
+
+    // Longest warm-up before the socket is opened, in milliseconds,
+    // `-Dmcsc.warmup=0` disables it, see `WarmUp`
+    static final int WARMUP = Integer.getInteger("mcsc.warmup", 5000);
+
+    // `-Dmcsc.metrics=false` stops recording the latencies of the phases
+    // of a check, see `Metrics`
+    static final boolean METRICS = !"false".equals(System.getProperty("mcsc.metrics"));
+
+    // File the latencies are written to on shutdown, next to the check
+    // cache of the version when hosted. Empty writes none
+    static final String METRICS_DUMP = System.getProperty("mcsc.metricsDump", "");
+
+    // Set by `host.Main`, which loads several versions in one JVM and
+    // accepts the connections for all of them, see `hostVersion()`
+    static final boolean HOSTED = Boolean.getBoolean("mcsc.host");
+
+    // `-Dmcsc.tick=throttle` keeps the host server from competing with the
+    // checker: autosave is turned off and, from 1.20.3 on, the world is
+    // frozen and ticked once per second, see `throttleTicks()`
+    static final String TICK = System.getProperty("mcsc.tick", "normal");
+
+    // Set once `initHeadless()` is called, launchers built without the
+    // headless bootstrap never call it
+    static volatile boolean headlessStarted = false;
+
+    // Called by the injected code after the server is created
     public static void init(Object server) {
+        if (HEADLESS && headlessStarted) return;
+        if (HEADLESS) {
+            System.err.println(
+                "warning: this launcher was built without the headless bootstrap, " +
+                "checking with the full server"
+            );
+        }
+
         new Thread(() -> {
             try {
                 main(server);
@@ -16,7 +101,94 @@ public class Main {
         }).start();
     }
 
+    // Called by the injected code with `server.properties` and `eula.txt`,
+    // which a server keeps in its working directory. Every version of a
+    // host keeps them in its own directory instead
+    public static String serverFile(String name) {
+        if (!HOSTED) return name;
+        return host.Main.dirOf(Main.class.getClassLoader()).resolve(name).toString();
+    }
+
+    // Called by the injected code in place of `Eula.hasAgreedToEULA()`. A
+    // headless checker runs no server, so there is nothing to agree to
+    public static boolean hasAgreedToEula(Object eula) throws Exception {
+        if (HEADLESS) return true;
+        return (boolean) new ObjectWrapper(eula).invoke(sig("hasAgreedToEULA")).object;
+    }
+
+    // Called by the injected code once the `WorldStem` is loaded, which
+    // holds the registries, the built-in datapack and the command tree.
+    // No level is loaded and no network listener is started before it.
+    // In headless mode it never returns, so the server is never created
+    public static void initHeadless(Object worldStem) {
+        if (!HEADLESS) return;
+        headlessStarted = true;
+
+        try {
+            var commands = new ObjectWrapper(worldStem)
+                .invoke(sig("dataPackResources"))
+                .invoke(sig("getCommands"))
+                .object;
+            var parser = CommandParser.headless(commands, THREADS, CHUNK_SIZE);
+            if (HOSTED) {
+                hostVersion(parser);
+                // Keeps the server from being created
+                Thread.currentThread().join();
+            }
+            serve(parser);
+        } catch (Exception e) {
+            System.err.println("error: could not start the headless checker: " + e);
+        }
+        // The other versions of a host keep running
+        if (HOSTED) throw new IllegalStateException("the headless checker stopped");
+        System.exit(1);
+    }
+
     public static void main(Object server) throws Exception {
+        switch (TICK) {
+        case "normal":
+            break;
+
+        case "throttle":
+            throttleTicks(server);
+            break;
+
+        default:
+            System.err.println("warning: unknown -Dmcsc.tick mode '" + TICK + "', using 'normal'");
+        }
+
+        serve(new CommandParser(server, THREADS, CHUNK_SIZE));
+    }
+
+    // The tick loop cannot be parked: a tick that takes longer than
+    // `max-tick-time` makes the watchdog kill the server, and stopping it
+    // waits for the loop. So it is slowed down to the minimum with the
+    // server's own commands, run on its thread. Commands a version does not
+    // have fail with a message in the console and the others still apply
+    static void throttleTicks(Object server) throws Exception {
+        var wrapper = new ObjectWrapper(server);
+        var commands = wrapper.invoke(sig("getCommands"));
+        var source = wrapper.invoke(sig("createCommandSourceStack")).object;
+        var perform = sig(
+            "performPrefixedCommand",
+            ObjectWrapper.findClass("net.minecraft.commands.CommandSourceStack"),
+            String.class
+        );
+
+        Runnable task = () -> {
+            for (var command : new String[] { "save-off", "tick freeze", "tick rate 1" }) {
+                try {
+                    commands.invoke(perform, source, command);
+                } catch (Exception e) {
+                    var cause = e.getCause() != null ? e.getCause() : e;
+                    System.err.println("warning: could not run '" + command + "': " + cause);
+                }
+            }
+        };
+        wrapper.invoke(sig("execute", Runnable.class), task);
+    }
+
+    static void serve(CommandParser parser) throws Exception {
         System.out.print(
             """
             ========================================
@@ -25,37 +197,418 @@ public class Main {
             """
         );
 
-        try (var pipe = new FilePipe()) {
-            long size = 0;
-            var parser = new CommandParser(server, pipe);
+        var socketPath = SocketPipe.path();
+        // A client that connects before the socket exists waits for it,
+        // so it never gets a cold checker
+        Files.deleteIfExists(SocketPipe.readyPath(socketPath));
+        var startup = startup();
+        var warmUp = warmUp(parser);
+        try (var listener = SocketPipe.listen(socketPath)) {
+            if (!METRICS_DUMP.isEmpty()) dumpMetricsOnExit(parser, Paths.get(METRICS_DUMP));
+            var scheduler = setUp(parser, CACHE_PATH.isEmpty() ? null : Paths.get(CACHE_PATH));
+            SocketPipe.markReady(socketPath, "version=" + parser.version() + " " + startup + " " + warmUp);
             while (true) {
+                var pipe = new SocketPipe(listener.accept());
+                scheduler.threads.newThread(() -> handle(parser, scheduler, pipe, null)).start();
+            }
+        } catch (Exception e) {
+            System.err.println("error: could not listen on " + socketPath + ": " + e);
+        }
+    }
+
+    // The host accepts the connections and hands over those whose requests
+    // are for this version. Every version has its own caches, scheduler and
+    // check cache file
+    static void hostVersion(CommandParser parser) throws Exception {
+        var version = parser.version();
+        var cachePath = CACHE_PATH.isEmpty() ? null : Paths.get(host.Main.DIR, version, CACHE_PATH);
+        if (cachePath != null) Files.createDirectories(cachePath.getParent());
+        if (!METRICS_DUMP.isEmpty()) {
+            var dumpPath = Paths.get(host.Main.DIR, version, METRICS_DUMP);
+            Files.createDirectories(dumpPath.getParent());
+            dumpMetricsOnExit(parser, dumpPath);
+        }
+
+        var scheduler = setUp(parser, cachePath);
+        warmUp(parser);
+        var loader = Main.class.getClassLoader();
+        host.Main.register(version, (pipe, frame) ->
+            scheduler.threads.newThread(() -> {
+                Thread.currentThread().setContextClassLoader(loader);
+                handle(parser, scheduler, pipe, frame);
+            }).start()
+        );
+    }
+
+    // How long the JVM took to get to the checker and the heap it holds
+    // then, for the readiness marker. Headless starts skip the world, so
+    // this is where they differ from full ones
+    static String startup() {
+        var millis = ManagementFactory.getRuntimeMXBean().getUptime();
+        var runtime = Runtime.getRuntime();
+        System.gc();
+        var heap = (runtime.totalMemory() - runtime.freeMemory()) / (1 << 10);
+        var result = String.format("startup.millis=%d startup.heap-kb=%d", millis, heap);
+        System.out.println("info: " + result);
+        return result;
+    }
+
+    // Returns the outcome for the readiness marker. A failing warm-up only
+    // costs the speed of the first requests
+    static String warmUp(CommandParser parser) {
+        if (WARMUP <= 0) return "warmup.rounds=0";
+        try {
+            var result = WarmUp.run(parser, WARMUP);
+            System.out.println("info: " + result);
+            return result;
+        } catch (Exception e) {
+            System.err.println("warning: warm-up failed: " + e);
+            return "warmup.rounds=0";
+        } finally {
+            // The latencies are of the requests only
+            parser.metrics.reset();
+        }
+    }
+
+    // `cachePath` is `null` if files are not cached between restarts
+    static Scheduler setUp(CommandParser parser, Path cachePath) throws Exception {
+        if (cachePath != null) {
+            var cache = new CheckCache(cachePath, parser.version(), CACHE_ENTRIES);
+            cache.load();
+            cache.saveEvery(CACHE_SAVE_SECONDS);
+            Runtime.getRuntime().addShutdownHook(new Thread(cache::saveIfDirty));
+            parser.cache = cache;
+        }
+
+        if (COMMAND_CACHE > 0) {
+            parser.commandCache = new CommandCache<>(COMMAND_CACHE);
+        }
+
+        if (COMPLETION_CACHE > 0) {
+            parser.completionCache = new CommandCache<>(COMPLETION_CACHE);
+        }
+
+        return new Scheduler(MAX_REQUESTS, INTERACTIVE_FILES, parser.metrics);
+    }
+
+    // In the format of the `stats` response, so runs of two versions can
+    // be compared with `diff`
+    static void dumpMetricsOnExit(CommandParser parser, Path path) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            var out = new StringBuilder("version=" + parser.version() + "\n");
+            parser.metrics.render(out);
+            try {
+                Files.writeString(path, out);
+            } catch (IOException e) {
+                System.err.println("warning: could not write metrics to " + path + ": " + e);
+            }
+        }));
+    }
+
+    // Requests with an id that are queued or being checked
+    static final ConcurrentHashMap<String, Request> inFlight = new ConcurrentHashMap<>();
+
+    // Watched directories by absolute path
+    static final ConcurrentHashMap<Path, Workspace> workspaces = new ConcurrentHashMap<>();
+
+    // Every response ends with a `done ...` or an `error <message>` frame.
+    //
+    // request types:
+    //     check [id=<id>] [deadline=<ms>] [format=<text|jsonl>]
+    //     <cwd>
+    //     <file-datapack-or-zip-relative-to-cwd>
+    //     <file-datapack-or-zip-relative-to-cwd>
+    //     ...
+    //
+    //     cancel id=<id>
+    //
+    //     stats
+    //
+    //     bench [rounds=<n>]
+    //     <cwd>
+    //     <file-path-relative-to-cwd>
+    //     ...
+    //
+    //     watch                   checks the directory, then every change
+    //     <cwd>                   to it until the client disconnects, see
+    //     <dir-relative-to-cwd>   `Workspace` for the response
+    //
+    //     complete [cursor=<n>]   completions of the command, the cursor is
+    //     <command>               at its end by default
+    //
+    //     lsp                     switches the connection to the Language
+    //                             Server Protocol, see `LanguageServer`
+    //
+    // Every request may name the version it is for with `version=<version>`,
+    // which a host routes by and a checker of another version rejects.
+    // `first` is a frame the host already read from the connection
+    static void handle(CommandParser parser, Scheduler scheduler, SocketPipe pipe, String first) {
+        try (pipe) {
+            String frame = first;
+            while (frame != null || (frame = pipe.read()) != null) {
+                Request request;
                 try {
-                    while (pipe.channel.size() == size) {}
-                    while (pipe.channel.size() == 0) {}
+                    request = Request.parse(frame);
+                } catch (IllegalArgumentException e) {
+                    pipe.write("error invalid request: " + e.getMessage());
+                    continue;
+                } finally {
+                    frame = null;
+                }
+
+                var version = request.options.get("version");
+                if (version != null && !version.equals(parser.version())) {
+                    pipe.write("error this server checks " + parser.version() + ", not " + version);
+                    continue;
+                }
 
-                    String[] filePaths;
-                    try (var lock = pipe.lockForRead()) {
-                        pipe.channel.position(0);
-                        filePaths = pipe.read().split("\n");
+                switch (request.type) {
+                case "check":
+                    try {
+                        check(parser, scheduler, request, pipe);
+                    } catch (Exception e) {
+                        // e.g. an invalid path or a worker that failed, the
+                        // response still ends with `error`
+                        pipe.write("error could not check commands: " + e);
                     }
+                    break;
 
-                    for (var p : filePaths)
-                        System.out.println(p);
+                case "cancel":
+                    var cancelled = request.id == null ? null : inFlight.get(request.id);
+                    if (cancelled != null) {
+                        cancelled.cancel();
+                        pipe.write("done status=success");
+                    } else {
+                        pipe.write("error no request with id '" + request.id + "'");
+                    }
+                    break;
 
-                    try (var lock = pipe.lockForWrite()) {
-                        parser.parseFiles(
-                            Paths.get(filePaths[0]),
-                            Arrays.copyOfRange(filePaths, 1, filePaths.length)
-                        );
+                case "stats":
+                    pipe.write(stats(parser));
+                    pipe.write("done status=success");
+                    break;
 
-                        size = pipe.channel.size();
+                case "bench":
+                    try {
+                        bench(parser, scheduler, request, pipe);
+                    } catch (Exception e) {
+                        pipe.write("error could not run benchmark: " + e);
                     }
-                } catch (Exception e) {
-                    System.err.println("error: could not check commands: " + e);
+                    break;
+
+                case "watch":
+                    watch(parser, scheduler, request, pipe);
+                    break;
+
+                case "complete":
+                    complete(parser, scheduler, request, pipe);
+                    break;
+
+                case "lsp":
+                    new LanguageServer(parser, scheduler, pipe).serve();
+                    return;
+
+                default:
+                    pipe.write("error unknown request type '" + request.type + "'");
                 }
             }
         } catch (Exception e) {
-            System.err.println("error: could not open pipe: " + e);
+            System.err.println("error: could not check commands: " + e);
+        }
+    }
+
+    static void check(
+        CommandParser parser,
+        Scheduler     scheduler,
+        Request       request,
+        SocketPipe    pipe
+    ) throws Exception {
+        if (request.body.length == 0) {
+            pipe.write("error missing working directory");
+            return;
+        }
+
+        for (var p : request.body)
+            System.out.println(p);
+
+        // A newer request for the same id makes the old result useless
+        if (request.id != null) {
+            var previous = inFlight.put(request.id, request);
+            if (previous != null) previous.cancel();
         }
+
+        try {
+            var cwd = Paths.get(request.body[0]);
+            var files = Arrays.copyOfRange(request.body, 1, request.body.length);
+            // A datapack may hold any number of files
+            var datapacks = Arrays.stream(files)
+                .anyMatch(f -> Datapack.isPack(cwd.resolve(f)));
+            request.priority = datapacks
+                ? Scheduler.Priority.BULK
+                : scheduler.priorityOf(files.length);
+            scheduler.run(
+                request.priority,
+                pipe,
+                () -> parser.parseFiles(request, cwd, files, pipe)
+            );
+        } finally {
+            if (request.id != null) inFlight.remove(request.id, request);
+        }
+    }
+
+    static void bench(
+        CommandParser parser,
+        Scheduler     scheduler,
+        Request       request,
+        SocketPipe    pipe
+    ) throws Exception {
+        if (request.body.length < 2) {
+            pipe.write("error bench expects a working directory and files");
+            return;
+        }
+
+        var cwd = Paths.get(request.body[0]);
+        var files = Arrays.copyOfRange(request.body, 1, request.body.length);
+        var rounds = Integer.parseInt(request.options.getOrDefault("rounds", "10"));
+        scheduler.run(Scheduler.Priority.BULK, pipe, () -> {
+            pipe.write("stats\n" + Bench.run(parser, cwd, files, rounds));
+            pipe.write("done status=success");
+        });
+    }
+
+    // response:
+    //     completions
+    //     <start> <end> <text>
+    //     ...
+    //     done status=success
+    static void complete(
+        CommandParser parser,
+        Scheduler     scheduler,
+        Request       request,
+        SocketPipe    pipe
+    ) throws Exception {
+        if (request.body.length != 1) {
+            pipe.write("error complete expects one command");
+            return;
+        }
+
+        var command = request.body[0];
+        var option = request.options.getOrDefault("cursor", String.valueOf(command.length()));
+        int cursor;
+        try {
+            cursor = Integer.parseInt(option);
+        } catch (NumberFormatException e) {
+            pipe.write("error invalid cursor '" + option + "'");
+            return;
+        }
+        if (cursor < 0 || cursor > command.length()) {
+            pipe.write("error cursor " + cursor + " is outside of the command");
+            return;
+        }
+
+        scheduler.run(Scheduler.Priority.INTERACTIVE, pipe, () -> {
+            parser.refresh();
+            var out = new StringBuilder("completions\n");
+            try {
+                for (var suggestion : parser.complete(command, cursor, parser.source(request))) {
+                    suggestion.render(out);
+                }
+            } catch (Exception e) {
+                // e.g. suggestions that need a player list in headless mode
+                pipe.write("error could not complete: " + e);
+                return;
+            }
+            pipe.write(out.toString());
+            pipe.write("done status=success");
+        });
+    }
+
+    // Clients watching the same directory share its `Workspace`, which
+    // is closed when the last of them disconnects
+    static void watch(
+        CommandParser parser,
+        Scheduler     scheduler,
+        Request       request,
+        SocketPipe    pipe
+    ) throws Exception {
+        if (request.body.length != 2) {
+            pipe.write("error watch expects a working directory and a directory");
+            return;
+        }
+
+        var shownDir = request.body[1];
+        var dir = Paths.get(request.body[0]).resolve(shownDir).toAbsolutePath().normalize();
+        if (!Files.isDirectory(dir)) {
+            pipe.write("error '" + shownDir + "' is not a directory");
+            return;
+        }
+
+        Workspace subscribed;
+        try {
+            subscribed = workspaces.compute(dir, (key, workspace) -> {
+                // A workspace whose watch thread stopped is replaced
+                if (workspace != null && workspace.subscribe(pipe, shownDir)) return workspace;
+                try {
+                    workspace = new Workspace(dir, parser, scheduler, WATCH_DEBOUNCE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                workspace.start();
+                workspace.subscribe(pipe, shownDir);
+                return workspace;
+            });
+        } catch (UncheckedIOException e) {
+            pipe.write("error could not watch '" + shownDir + "': " + e.getCause());
+            return;
+        }
+
+        try {
+            // Nothing but the end of the connection is expected
+            while (pipe.read() != null);
+        } finally {
+            // The workspace may have stopped and been replaced meanwhile
+            workspaces.compute(dir, (key, workspace) -> {
+                var last = subscribed.unsubscribe(pipe);
+                return workspace == subscribed && last ? null : workspace;
+            });
+        }
+    }
+
+    // response:
+    //     stats
+    //     <name>=<value>
+    //     ...
+    static String stats(CommandParser parser) {
+        var out = new StringBuilder("stats\n");
+        var commands = parser.commandCache;
+        if (commands != null) {
+            out.append("command-cache.entries=" + commands.size() + "\n");
+            out.append("command-cache.capacity=" + commands.capacity + "\n");
+            out.append("command-cache.hits=" + commands.hits.sum() + "\n");
+            out.append("command-cache.misses=" + commands.misses.sum() + "\n");
+            out.append("command-cache.evictions=" + commands.evictions.sum() + "\n");
+            out.append(String.format("command-cache.hit-rate=%.3f\n", commands.hitRate()));
+        }
+
+        var completions = parser.completionCache;
+        if (completions != null) {
+            out.append("completion-cache.entries=" + completions.size() + "\n");
+            out.append("completion-cache.capacity=" + completions.capacity + "\n");
+            out.append("completion-cache.hits=" + completions.hits.sum() + "\n");
+            out.append("completion-cache.misses=" + completions.misses.sum() + "\n");
+            out.append(String.format("completion-cache.hit-rate=%.3f\n", completions.hitRate()));
+        }
+
+        if (parser.roots != null) {
+            out.append("root-index.literals=" + parser.roots.size() + "\n");
+        }
+
+        if (parser.cache != null) {
+            out.append("check-cache.entries=" + parser.cache.size() + "\n");
+        }
+
+        if (METRICS) parser.metrics.render(out);
+
+        return out.toString();
     }
 }
@@ -0,0 +1,138 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histograms of the phases of a check, in nanoseconds. Every
+// `CommandParser` has its own, so the versions of a host are kept apart.
+// They are reported by the `stats` request and written on shutdown with
+// `-Dmcsc.metricsDump=<file>`, so the numbers of two Minecraft versions
+// can be compared.
+//
+// Recording is a `System.nanoTime()` call and two atomic adds, and nothing
+// at all with `-Dmcsc.metrics=false`
+public class Metrics {
+    public enum Phase {
+        // `parseCommand()`: the lookup of the first word in the `RootIndex`,
+        // which rejects unknown commands, then the steps of brigadier's
+        // `execute()`
+        ROOT_INDEX("root-index"),
+        PARSE("parse"),
+        VALIDATE("validate"),
+        BUILD_CONTEXT("build-context"),
+        FLATTEN("flatten"),
+        ERROR_RENDERING("error-rendering"),
+        // Reading or mapping a file in `parseFile()`
+        FILE_IO("file-io"),
+        // Waiting for a slot in the `Scheduler`
+        QUEUEING("queueing"),
+        // Writing a response frame, including waiting for the client
+        TRANSFER("transfer");
+
+        public final String code;
+
+        Phase(String code) {
+            this.code = code;
+        }
+    }
+
+    final Histogram[] histograms = new Histogram[Phase.values().length];
+
+    public Metrics() {
+        for (int i = 0; i < this.histograms.length; i++) this.histograms[i] = new Histogram();
+    }
+
+    public static long now() {
+        return Main.METRICS ? System.nanoTime() : 0;
+    }
+
+    // Records the time since `start` and returns the current time, which
+    // starts the next phase
+    public long record(Phase phase, long start) {
+        if (!Main.METRICS) return 0;
+        var now = System.nanoTime();
+        this.histograms[phase.ordinal()].record(now - start);
+        return now;
+    }
+
+    // Drops what was recorded so far, e.g. by the warm-up
+    public void reset() {
+        for (var histogram : this.histograms) histogram.reset();
+    }
+
+    // latency.<phase>.<count|mean-ns|p50-ns|p90-ns|p99-ns|p999-ns|max-ns>=<n>
+    public void render(StringBuilder out) {
+        for (var phase : Phase.values()) {
+            var histogram = this.histograms[phase.ordinal()];
+            var prefix = "latency." + phase.code + ".";
+            var count = histogram.count();
+            out.append(prefix).append("count=").append(count).append('\n');
+            if (count == 0) continue;
+
+            out.append(prefix).append("mean-ns=").append(histogram.sum.sum() / count).append('\n');
+            out.append(prefix).append("p50-ns=").append(histogram.percentile(0.50)).append('\n');
+            out.append(prefix).append("p90-ns=").append(histogram.percentile(0.90)).append('\n');
+            out.append(prefix).append("p99-ns=").append(histogram.percentile(0.99)).append('\n');
+            out.append(prefix).append("p999-ns=").append(histogram.percentile(0.999)).append('\n');
+            out.append(prefix).append("max-ns=").append(histogram.percentile(1.0)).append('\n');
+        }
+    }
+
+    // Every power of two is split into `SUB_BUCKETS` linear buckets, so a
+    // value is reported at most 1/8 above what was recorded, like an
+    // HdrHistogram with one significant digit. Values below `SUB_BUCKETS`
+    // have a bucket each
+    static final class Histogram {
+        static final int SUB_BITS    = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_BUCKETS);
+        final LongAdder       sum    = new LongAdder();
+
+        void record(long value) {
+            this.counts.incrementAndGet(index(value));
+            this.sum.add(value);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS) return (int) Math.max(0, value);
+            var shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        // The highest value that falls into the bucket
+        static long highest(int index) {
+            if (index < SUB_BUCKETS) return index;
+            var shift = index / SUB_BUCKETS - 1;
+            var lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < this.counts.length(); i++) count += this.counts.get(i);
+            return count;
+        }
+
+        // The value that `quantile` of the recorded values are at or below
+        long percentile(double quantile) {
+            var target = Math.max(1, (long) Math.ceil(quantile * count()));
+            long seen = 0;
+            var last = 0;
+            for (int i = 0; i < this.counts.length(); i++) {
+                var count = this.counts.get(i);
+                if (count == 0) continue;
+                seen += count;
+                last = i;
+                if (seen >= target) return highest(i);
+            }
+            // Recorded while it was read
+            return highest(last);
+        }
+
+        void reset() {
+            for (int i = 0; i < this.counts.length(); i++) this.counts.set(i, 0);
+            this.sum.reset();
+        }
+    }
+}
@@ -1,11 +1,28 @@
 package server;
 
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.InvocationTargetException;
+
 public class ObjectWrapper {
+    // Lookups are resolved once per (class, signature) and kept as
+    // `(Object, Object[])Object` handles, so the hot path is a map lookup
+    // plus `invokeExact` instead of `getMethod` + `Method.invoke`
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<MethodKey, MethodHandle> methods = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<MethodKey, MethodHandle> fields = new ConcurrentHashMap<>();
+
     public Class<?> clazz = null;
     public Object object  = null;
 
     public ObjectWrapper(String className) throws Exception {
-        this.clazz = Class.forName(className);
+        this.clazz = findClass(className);
     }
 
     public ObjectWrapper(Object object) {
@@ -21,9 +38,7 @@ public class ObjectWrapper {
         }
 
         return new ObjectWrapper(
-            this.clazz
-                .getMethod(sig.name, sig.params)
-                .invoke(this.object, args)
+            call(findMethod(this.clazz, sig, false), this.object, args)
         );
     }
 
@@ -33,9 +48,7 @@ public class ObjectWrapper {
         Object... args
     ) throws Exception {
         return new ObjectWrapper(
-            Class.forName(className)
-                .getMethod(sig.name, sig.params)
-                .invoke(null, args)
+            call(findMethod(findClass(className), sig, true), null, args)
         );
     }
 
@@ -44,15 +57,103 @@ public class ObjectWrapper {
         String fieldName
     ) throws Exception {
         return new ObjectWrapper(
-            Class.forName(className)
-                .getField(fieldName)
-                .get(null)
+            call(findField(findClass(className), fieldName), null)
         );
     }
 
+    public static Class<?> findClass(String className) throws Exception {
+        var clazz = classes.get(className);
+        if (clazz == null) {
+            clazz = Class.forName(className);
+            classes.put(className, clazz);
+        }
+        return clazz;
+    }
+
+    // Handle with every parameter and the return type erased to `Object`
+    // (`void` returns `null`), for hot paths that call it with
+    // `invokeExact` and a fixed number of arguments. The receiver of an
+    // instance method is the first parameter
+    public static MethodHandle findHandle(Class<?> clazz, MethodSignature sig) throws Exception {
+        var handle = LOOKUP.unreflect(clazz.getMethod(sig.name, sig.params));
+        return handle.asType(handle.type().generic());
+    }
+
+    // NOTE: Exceptions thrown by the target are wrapped into
+    //       `InvocationTargetException` like `Method.invoke()` does,
+    //       because callers unwrap `CommandSyntaxException` from it
+    static Object call(MethodHandle handle, Object receiver, Object... args) throws Exception {
+        try {
+            return (Object) handle.invokeExact(receiver, args);
+        } catch (Throwable t) {
+            throw targetException(t);
+        }
+    }
+
+    // Wraps what a handle's target threw. `Error`s and a
+    // `WrongMethodTypeException` of the call itself are thrown as they
+    // are, so a broken handle or an `OutOfMemoryError` is not taken for
+    // an exception of the target
+    public static InvocationTargetException targetException(Throwable t) {
+        if (t instanceof Error error)                throw error;
+        if (t instanceof WrongMethodTypeException e) throw e;
+        return new InvocationTargetException(t);
+    }
+
+    static MethodHandle findMethod(
+        Class<?> clazz,
+        MethodSignature sig,
+        boolean isStatic
+    ) throws Exception {
+        var key = new MethodKey(clazz, sig);
+        var handle = methods.get(key);
+        if (handle == null) {
+            var method = clazz.getMethod(sig.name, sig.params);
+            handle = LOOKUP.unreflect(method);
+            handle = handle
+                .asType(handle.type().generic())
+                .asSpreader(Object[].class, sig.params.length);
+            if (isStatic) {
+                handle = MethodHandles.dropArguments(handle, 0, Object.class);
+            }
+            methods.put(key, handle);
+        }
+        return handle;
+    }
+
+    static MethodHandle findField(Class<?> clazz, String fieldName) throws Exception {
+        var key = new MethodKey(clazz, new MethodSignature(fieldName));
+        var handle = fields.get(key);
+        if (handle == null) {
+            handle = LOOKUP.unreflectGetter(clazz.getField(fieldName));
+            handle = MethodHandles.dropArguments(
+                handle.asType(MethodType.methodType(Object.class)),
+                0, Object.class, Object[].class
+            );
+            fields.put(key, handle);
+        }
+        return handle;
+    }
+
+    static record MethodKey(Class<?> clazz, MethodSignature sig) {}
+
     public static record MethodSignature(String name, Class<?>... params) {
         public static MethodSignature sig(String name, Class<?>... params) {
             return new MethodSignature(name, params);
         }
+
+        // Records compare arrays by identity, but signatures are used as
+        // cache keys, so compare the parameter types by content
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof MethodSignature other
+                && this.name.equals(other.name)
+                && Arrays.equals(this.params, other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.name.hashCode() + Arrays.hashCode(this.params);
+        }
     }
 }
@@ -0,0 +1,101 @@
+package server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// protocol:
+//     <type> [<key>=<value>]...
+//     <body-line>
+//     <body-line>
+//     ...
+//
+// Known options:
+//     id=<id>          lets the request be cancelled with `cancel id=<id>`,
+//                      a new request with the same id cancels the old one
+//     deadline=<ms>    stop checking after <ms> milliseconds
+//     format=<format>  `text` (default) or `jsonl` diagnostics, see
+//                      `CommandParser.parseFiles()`
+public class Request {
+    public enum Status {
+        RUNNING("running"),
+        CANCELLED("cancelled"),
+        TIMED_OUT("timed-out");
+
+        public final String code;
+
+        Status(String code) {
+            this.code = code;
+        }
+    }
+
+    public final String              type;
+    public final Map<String, String> options;
+    public final String[]            body;
+    public final String              id;
+    public final boolean             jsonl;
+    public Scheduler.Priority        priority = Scheduler.Priority.INTERACTIVE;
+    public final AtomicInteger       cacheHits = new AtomicInteger();
+    public final AtomicInteger       cacheMisses = new AtomicInteger();
+
+    // Command source shared by all lines of the request
+    public volatile Object           source;
+
+    // `System.nanoTime()` after which the request times out, 0 if never
+    private final long deadline;
+    private volatile Status status = Status.RUNNING;
+
+    public Request(String type, Map<String, String> options, String[] body) {
+        this.type = type;
+        this.options = options;
+        this.body = body;
+        this.id = options.get("id");
+
+        var format = options.getOrDefault("format", "text");
+        if (!format.equals("text") && !format.equals("jsonl")) {
+            throw new IllegalArgumentException("unknown format: " + format);
+        }
+        this.jsonl = format.equals("jsonl");
+
+        var deadlineMillis = Long.parseLong(options.getOrDefault("deadline", "0"));
+        this.deadline = deadlineMillis > 0
+            ? System.nanoTime() + deadlineMillis * 1_000_000
+            : 0;
+    }
+
+    public static Request parse(String frame) {
+        var lines = frame.split("\n");
+        var header = lines[0].trim().split(" +");
+
+        var options = new HashMap<String, String>();
+        for (int i = 1; i < header.length; i++) {
+            var eq = header[i].indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("invalid option: " + header[i]);
+            }
+            options.put(header[i].substring(0, eq), header[i].substring(eq + 1));
+        }
+
+        var body = new String[lines.length - 1];
+        System.arraycopy(lines, 1, body, 0, body.length);
+        return new Request(header[0], options, body);
+    }
+
+    public void cancel() {
+        if (this.status == Status.RUNNING) this.status = Status.CANCELLED;
+    }
+
+    // Checked between lines, so it has to be cheap
+    public boolean isStopped() {
+        if (this.status != Status.RUNNING) return true;
+        if (this.deadline != 0 && System.nanoTime() - this.deadline > 0) {
+            this.status = Status.TIMED_OUT;
+            return true;
+        }
+        return false;
+    }
+
+    public Status status() {
+        return this.status;
+    }
+}
@@ -0,0 +1,63 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+// Names of the root literals of the command tree: every command and alias
+// (e.g. `tp`, which redirects to `teleport`) the checking source may use.
+// Brigadier fails a line whose first word is none of them with the
+// unknown command error at cursor 0, and the index gives the same
+// diagnostic without parsing the line or building the exception
+public class RootIndex {
+    public final String unknownCommandMessage;
+
+    // Open hashing by `String.hashCode()` of the name
+    private final String[][] table;
+    private final int mask;
+
+    public RootIndex(Collection<String> names, String unknownCommandMessage) {
+        this.unknownCommandMessage = unknownCommandMessage;
+
+        var size = Integer.highestOneBit(Math.max(1, names.size()) * 2 - 1) << 1;
+        this.mask = size - 1;
+        var buckets = new ArrayList<ArrayList<String>>(size);
+        for (int i = 0; i < size; i++) buckets.add(new ArrayList<>());
+        for (var name : names) {
+            buckets.get(spread(name.hashCode()) & this.mask).add(name);
+        }
+
+        this.table = new String[size][];
+        for (int i = 0; i < size; i++) {
+            if (!buckets.get(i).isEmpty()) this.table[i] = buckets.get(i).toArray(new String[0]);
+        }
+    }
+
+    // The first word ends at the first space, like a literal does in
+    // brigadier. Nothing is allocated
+    public boolean isKnown(String command) {
+        var end = command.indexOf(' ');
+        if (end < 0) end = command.length();
+
+        var hash = 0;
+        for (int i = 0; i < end; i++) hash = 31 * hash + command.charAt(i);
+
+        var bucket = this.table[spread(hash) & this.mask];
+        if (bucket == null) return false;
+        for (var name : bucket) {
+            if (name.length() == end && command.startsWith(name)) return true;
+        }
+        return false;
+    }
+
+    public int size() {
+        var size = 0;
+        for (var bucket : this.table) {
+            if (bucket != null) size += bucket.length;
+        }
+        return size;
+    }
+
+    static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
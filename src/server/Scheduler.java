@@ -0,0 +1,125 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounds the number of checks running at the same time. When a slot frees
+// up, interactive requests are admitted before bulk ones. Within a
+// priority every client (a connection, or a watched directory) has a
+// queue of its own, and the clients take turns, so one that sends many
+// checks does not hold up the others. A client's own requests are
+// admitted in the order they arrived
+public class Scheduler {
+    public enum Priority { INTERACTIVE, BULK }
+
+    public static interface Task {
+        public void run() throws Exception;
+    }
+
+    public final int maxInFlight;
+    public final int interactiveFiles;
+    public final ThreadFactory threads = threadFactory();
+    // Where the time a request waits for its slot is recorded
+    public final Metrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // Per priority the clients with waiting requests, the next to be
+    // served first
+    private final LinkedHashMap<Object, ArrayDeque<Object>>[] queues;
+    private int inFlight = 0;
+
+    // Requests with at most `interactiveFiles` files are interactive
+    @SuppressWarnings("unchecked")
+    public Scheduler(int maxInFlight, int interactiveFiles, Metrics metrics) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.interactiveFiles = interactiveFiles;
+        this.metrics = metrics;
+        this.queues = new LinkedHashMap[Priority.values().length];
+        for (int i = 0; i < this.queues.length; i++) {
+            this.queues[i] = new LinkedHashMap<>();
+        }
+    }
+
+    public Priority priorityOf(int fileCount) {
+        return fileCount <= this.interactiveFiles
+            ? Priority.INTERACTIVE
+            : Priority.BULK;
+    }
+
+    public void run(Priority priority, Object client, Task task) throws Exception {
+        var queued = Metrics.now();
+        acquire(priority, client);
+        this.metrics.record(Metrics.Phase.QUEUEING, queued);
+        try {
+            task.run();
+        } finally {
+            release();
+        }
+    }
+
+    void acquire(Priority priority, Object client) throws InterruptedException {
+        var ticket = new Object();
+        var clients = this.queues[priority.ordinal()];
+        lock.lock();
+        try {
+            clients.computeIfAbsent(client, c -> new ArrayDeque<>()).add(ticket);
+            try {
+                while (inFlight >= maxInFlight || next() != ticket) {
+                    changed.await();
+                }
+            } catch (InterruptedException e) {
+                var queue = clients.get(client);
+                queue.remove(ticket);
+                if (queue.isEmpty()) clients.remove(client);
+                changed.signalAll();
+                throw e;
+            }
+
+            // The client goes to the back of the line
+            var queue = clients.remove(client);
+            queue.poll();
+            if (!queue.isEmpty()) clients.put(client, queue);
+            inFlight += 1;
+            // The next waiter may fit into a free slot too
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            inFlight -= 1;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Object next() {
+        for (var clients : this.queues) {
+            if (!clients.isEmpty()) return clients.values().iterator().next().peek();
+        }
+        return null;
+    }
+
+    // Requests mostly wait on sockets, so they run on virtual threads.
+    // They are looked up reflectively because older Minecraft versions
+    // run on JVMs without them, where platform threads are used instead
+    static ThreadFactory threadFactory() {
+        try {
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class
+                .forName("java.lang.Thread$Builder")
+                .getMethod("factory")
+                .invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return Thread::new;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package server;
+
+// A completion that replaces the text from `start` to `end` of the command
+public record Suggestion(int start, int end, String text) {
+    public void render(StringBuilder out) {
+        // <start> <end> <text>
+        out.append(start).append(' ').append(end).append(' ')
+           .append(text).append('\n');
+    }
+}
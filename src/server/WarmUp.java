@@ -0,0 +1,84 @@
+package server;
+
+// Runs a built-in corpus of commands through `parseCommand()` before the
+// first request, so the reflective handles and brigadier's parsers are
+// compiled by the JIT instead of interpreted while a client waits. Both
+// valid commands and the common kinds of errors are in it, errors take
+// their own path through brigadier.
+//
+// Rounds are run until the best time per command has not improved by
+// `IMPROVEMENT` for `STABLE_ROUNDS` rounds in a row, or `maxMillis` is
+// spent. Commands a version does not know are still worth running, they
+// fail the same way user commands do
+public class WarmUp {
+    static final String[] CORPUS = {
+        "say Hello, world",
+        "tellraw @a {\"text\":\"Hello\",\"color\":\"gold\"}",
+        "tp @s ~ ~1 ~",
+        "teleport @e[type=minecraft:zombie,limit=1,sort=nearest] 0 64 0",
+        "execute as @a[scores={points=1..}] at @s run summon minecraft:lightning_bolt ~ ~ ~",
+        "execute if entity @s[tag=admin] run give @s minecraft:diamond 3",
+        "execute store result score @s points run data get entity @s Health",
+        "scoreboard objectives add points dummy",
+        "scoreboard players add @a points 1",
+        "scoreboard players operation @s points += @p points",
+        "setblock ~ ~-1 ~ minecraft:stone",
+        "fill ~-2 ~ ~-2 ~2 ~3 ~2 minecraft:air replace",
+        "summon minecraft:armor_stand ~ ~ ~ {Invisible:1b,Tags:[\"marker\"]}",
+        "data modify storage mcsc:warmup list append value {id:1}",
+        "effect give @a minecraft:speed 10 1 true",
+        "tag @s add warmed",
+        "kill @e[type=minecraft:item,distance=..10]",
+        "playsound minecraft:entity.experience_orb.pickup master @a",
+        "particle minecraft:flame ~ ~1 ~ 0.5 0.5 0.5 0.01 20",
+        "title @a actionbar {\"text\":\"ready\"}",
+        "gamerule doDaylightCycle false",
+        "time set day",
+        "weather clear",
+        "sya Hello, world",
+        "tp @s ~ ~",
+        "execute as @a run",
+        "give @s minecraft:not_an_item",
+        "scoreboard players add @a",
+        "setblock ~ ~ ~ minecraft:stone[facing=up]",
+        "summon minecraft:pig ~ ~ ~ {Invulnerable:1b",
+    };
+
+    // Times the corpus is run per timed round
+    static final int    REPEAT        = 50;
+    static final int    STABLE_ROUNDS = 5;
+    static final double IMPROVEMENT   = 0.05;
+
+    // Returns the outcome as `<name>=<value>` pairs for the log and the
+    // readiness marker
+    public static String run(CommandParser parser, long maxMillis) throws Exception {
+        var source = parser.createSource();
+        var start = System.nanoTime();
+        var deadline = start + maxMillis * 1_000_000;
+
+        var rounds = 0;
+        var stale = 0;
+        var first = 0.0;
+        var best = Double.MAX_VALUE;
+        while (stale < STABLE_ROUNDS && System.nanoTime() - deadline < 0) {
+            var roundStart = System.nanoTime();
+            for (int i = 0; i < REPEAT; i++) {
+                for (var command : CORPUS) {
+                    parser.parseCommand(command, 0, source);
+                }
+            }
+            var nanos = (double) (System.nanoTime() - roundStart) / (REPEAT * CORPUS.length);
+
+            if (rounds++ == 0) first = nanos;
+            stale = nanos < best * (1 - IMPROVEMENT) ? 0 : stale + 1;
+            best = Math.min(best, nanos);
+        }
+
+        return String.format(
+            "warmup.rounds=%d warmup.millis=%d warmup.stable=%b " +
+            "warmup.first-ns-per-command=%.0f warmup.ns-per-command=%.0f",
+            rounds, (System.nanoTime() - start) / 1_000_000, stale >= STABLE_ROUNDS,
+            first, best
+        );
+    }
+}
@@ -0,0 +1,295 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import utils.SocketPipe;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// A directory whose `.mcfunction` files are checked again whenever they
+// change. The diagnostics of every file are kept, so a change re-checks
+// only the changed files and subscribers are sent only their results.
+// Changes that come within `debounceMillis` of each other are checked
+// together.
+//
+// frames sent to subscribers:
+//     diagnostics                 a file has errors
+//     <diagnostic-lines>
+//
+//     clear <file>                a file that had errors has none now,
+//                                 or was deleted
+//
+//     checked status=<success|failed> files=<n> failed=<n> errors=<n>
+//                                 after every batch of changes, the
+//                                 counts are for the whole workspace
+public class Workspace implements Closeable {
+    static record Subscriber(SocketPipe pipe, String shownDir) {}
+
+    public final Path dir;
+    public final long debounceMillis;
+
+    final CommandParser parser;
+    final Scheduler     scheduler;
+    final WatchService  watcher;
+
+    // Only used by the watch thread
+    final HashMap<WatchKey, Path> dirs = new HashMap<>();
+
+    // Guarded by `this`
+    final TreeMap<Path, List<Diagnostic>> results = new TreeMap<>();
+    final ArrayList<Subscriber> subscribers = new ArrayList<>();
+    boolean checked = false;
+    boolean stopped = false;
+
+    // `dir` has to be absolute
+    public Workspace(
+        Path          dir,
+        CommandParser parser,
+        Scheduler     scheduler,
+        long          debounceMillis
+    ) throws IOException {
+        this.dir = dir;
+        this.parser = parser;
+        this.scheduler = scheduler;
+        this.debounceMillis = debounceMillis;
+        this.watcher = dir.getFileSystem().newWatchService();
+    }
+
+    public void start() {
+        var thread = new Thread(this::run, "mcsc-watch " + this.dir);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The new subscriber is sent the diagnostics of every file that has
+    // errors, unless the first check is still running and will send them.
+    // Returns `false` if the watch thread stopped, then nothing would be
+    // sent anymore
+    public synchronized boolean subscribe(SocketPipe pipe, String shownDir) {
+        if (this.stopped) return false;
+        var subscriber = new Subscriber(pipe, shownDir);
+        this.subscribers.add(subscriber);
+        if (this.checked) send(subscriber, this.results, Map.of());
+        return true;
+    }
+
+    // Returns `true` if it was the last subscriber, then the workspace is
+    // closed
+    public synchronized boolean unsubscribe(SocketPipe pipe) {
+        this.subscribers.removeIf(s -> s.pipe() == pipe);
+        if (!this.subscribers.isEmpty()) return false;
+        close();
+        return true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.watcher.close();
+        } catch (IOException e) {
+            System.err.println("warning: could not stop watching " + this.dir + ": " + e);
+        }
+    }
+
+    void run() {
+        try {
+            register(this.dir);
+            check(new TreeSet<>(functions(this.dir)));
+
+            while (true) {
+                var changed = new TreeSet<Path>();
+                var key = this.watcher.take();
+                while (key != null) {
+                    collect(key, changed);
+                    key = this.watcher.poll(this.debounceMillis, TimeUnit.MILLISECONDS);
+                }
+                check(changed);
+                // Nothing is watched anymore, e.g. the directory was deleted
+                if (this.dirs.isEmpty()) throw new NoSuchFileException(this.dir.toString());
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // The last subscriber left
+        } catch (Exception e) {
+            System.err.println("error: stopped watching " + this.dir + ": " + e);
+            synchronized (this) {
+                this.stopped = true;
+                for (var subscriber : this.subscribers) {
+                    try {
+                        subscriber.pipe().write("error stopped watching: " + e);
+                    } catch (Exception ignored) {
+                    }
+                }
+            }
+        } finally {
+            // New subscribers start a new workspace instead of waiting
+            // for results of this one
+            synchronized (this) {
+                this.stopped = true;
+            }
+            Main.workspaces.remove(this.dir, this);
+            close();
+        }
+    }
+
+    // Adds the files an event of `key` may have changed to `changed`
+    void collect(WatchKey key, TreeSet<Path> changed) throws IOException {
+        var parent = this.dirs.get(key);
+        for (var event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW || parent == null) {
+                // Events were lost, so everything is checked again
+                changed.addAll(functions(this.dir));
+                synchronized (this) {
+                    changed.addAll(this.results.keySet());
+                }
+                continue;
+            }
+
+            var path = parent.resolve((Path) event.context());
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                register(path);
+                changed.addAll(functions(path));
+            } else if (event.kind() == ENTRY_DELETE) {
+                // May be a directory with checked files in it
+                changed.add(path);
+                synchronized (this) {
+                    for (var file : this.results.keySet()) {
+                        if (file.startsWith(path)) changed.add(file);
+                    }
+                }
+            } else if (path.getFileName().toString().endsWith(Datapack.EXTENSION)) {
+                changed.add(path);
+            }
+        }
+
+        if (!key.reset()) this.dirs.remove(key);
+    }
+
+    void check(TreeSet<Path> changed) throws Exception {
+        changed.removeIf(p ->
+            !p.getFileName().toString().endsWith(Datapack.EXTENSION)
+        );
+        if (changed.isEmpty()) return;
+
+        // Deleted files are mapped to `null`
+        var checked = new TreeMap<Path, List<Diagnostic>>();
+        var request = new Request("watch", Map.of(), new String[0]);
+        request.priority = this.scheduler.priorityOf(changed.size());
+        this.scheduler.run(request.priority, this, () -> {
+            this.parser.refresh();
+            var parallel = request.priority == Scheduler.Priority.BULK
+                && this.parser.workers != null;
+            var tasks = new ArrayList<ForkJoinTask<List<Diagnostic>>>();
+            if (parallel) {
+                for (var path : changed) {
+                    tasks.add(this.parser.workers.submit(() -> checkFile(request, path)));
+                }
+            }
+
+            int i = 0;
+            for (var path : changed) {
+                checked.put(path, parallel
+                    ? CommandParser.await(tasks.get(i++))
+                    : checkFile(request, path));
+            }
+        });
+
+        synchronized (this) {
+            var previous = new HashMap<Path, List<Diagnostic>>();
+            for (var e : checked.entrySet()) {
+                previous.put(e.getKey(), e.getValue() == null
+                    ? this.results.remove(e.getKey())
+                    : this.results.put(e.getKey(), e.getValue()));
+            }
+            this.checked = true;
+
+            for (var subscriber : List.copyOf(this.subscribers)) {
+                send(subscriber, checked, previous);
+            }
+        }
+    }
+
+    List<Diagnostic> checkFile(Request request, Path path) throws Exception {
+        if (!Files.isRegularFile(path)) return null;
+        try {
+            return this.parser.parseFile(request, path);
+        } catch (IOException e) {
+            // Deleted or replaced while it was read, a new event follows
+            return null;
+        }
+    }
+
+    // Sends the changed files followed by the workspace totals. A
+    // subscriber that cannot be written to is dropped, its connection is
+    // closed by the request thread
+    void send(
+        Subscriber                     subscriber,
+        Map<Path, List<Diagnostic>>    checked,
+        Map<Path, List<Diagnostic>>    previous
+    ) {
+        var pipe = subscriber.pipe();
+        var out = new StringBuilder();
+        try {
+            for (var e : checked.entrySet()) {
+                var shownPath = subscriber.shownDir() + "/" + this.dir.relativize(e.getKey());
+                var diagnostics = e.getValue();
+                if (diagnostics != null && !diagnostics.isEmpty()) {
+                    this.parser.flush(pipe, shownPath, diagnostics, out);
+                } else {
+                    var old = previous.get(e.getKey());
+                    if (old != null && !old.isEmpty()) pipe.write("clear " + shownPath);
+                }
+            }
+
+            int failed = 0, errors = 0;
+            for (var diagnostics : this.results.values()) {
+                if (!diagnostics.isEmpty()) failed += 1;
+                errors += diagnostics.size();
+            }
+
+            pipe.write(String.format(
+                "checked status=%s files=%d failed=%d errors=%d",
+                errors == 0 ? "success" : "failed",
+                this.results.size(), failed, errors
+            ));
+        } catch (Exception e) {
+            this.subscribers.remove(subscriber);
+        }
+    }
+
+    void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                dirs.put(d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    static List<Path> functions(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            return paths
+                .filter(p -> p.getFileName().toString().endsWith(Datapack.EXTENSION))
+                .filter(Files::isRegularFile)
+                .sorted()
+                .toList();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough JSON for the protocols we speak.
+//
+// Objects are read as `LinkedHashMap<String, Object>`, arrays as
+// `ArrayList<Object>`, numbers as `Long` if they are integers and as
+// `Double` otherwise. Writing accepts the same types plus any `Number`,
+// `Boolean` and `null`
+public class Json {
+    private final String text;
+    private int pos = 0;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    public static Object parse(String text) {
+        var json = new Json(text);
+        var value = json.value();
+        json.skipSpace();
+        if (json.pos != text.length()) throw json.error("unexpected data after the value");
+        return value;
+    }
+
+    public static String write(Object value) {
+        var out = new StringBuilder();
+        write(value, out);
+        return out.toString();
+    }
+
+    public static void write(Object value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String s) {
+            writeString(s, out);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.append(value);
+        } else if (value instanceof Map<?, ?> map) {
+            out.append('{');
+            var first = true;
+            for (var e : map.entrySet()) {
+                if (!first) out.append(',');
+                first = false;
+                writeString((String) e.getKey(), out);
+                out.append(':');
+                write(e.getValue(), out);
+            }
+            out.append('}');
+        } else if (value instanceof List<?> list) {
+            out.append('[');
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) out.append(',');
+                write(list.get(i), out);
+            }
+            out.append(']');
+        } else {
+            throw new IllegalArgumentException("cannot write " + value.getClass() + " as JSON");
+        }
+    }
+
+    public static void writeString(String s, StringBuilder out) {
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            var c = s.charAt(i);
+            switch (c) {
+            case '"':  out.append("\\\""); break;
+            case '\\': out.append("\\\\"); break;
+            case '\n': out.append("\\n");  break;
+            case '\r': out.append("\\r");  break;
+            case '\t': out.append("\\t");  break;
+            default:
+                if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    // `{"key": value, ...}` with the keys in the given order
+    public static Map<String, Object> object(Object... keysAndValues) {
+        var map = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            map.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return map;
+    }
+
+    private Object value() {
+        skipSpace();
+        if (pos == text.length()) throw error("unexpected end");
+        var c = text.charAt(pos);
+        switch (c) {
+        case '{': return object();
+        case '[': return array();
+        case '"': return string();
+        case 't': return literal("true", Boolean.TRUE);
+        case 'f': return literal("false", Boolean.FALSE);
+        case 'n': return literal("null", null);
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) return number();
+            throw error("unexpected character '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> object() {
+        var map = new LinkedHashMap<String, Object>();
+        pos++;
+        skipSpace();
+        if (peek('}')) return map;
+        while (true) {
+            skipSpace();
+            if (pos == text.length() || text.charAt(pos) != '"') throw error("expected a key");
+            var key = string();
+            skipSpace();
+            expect(':');
+            map.put(key, value());
+            skipSpace();
+            if (peek('}')) return map;
+            expect(',');
+        }
+    }
+
+    private List<Object> array() {
+        var list = new ArrayList<Object>();
+        pos++;
+        skipSpace();
+        if (peek(']')) return list;
+        while (true) {
+            list.add(value());
+            skipSpace();
+            if (peek(']')) return list;
+            expect(',');
+        }
+    }
+
+    private String string() {
+        pos++;
+        var out = new StringBuilder();
+        while (true) {
+            if (pos >= text.length()) throw error("unterminated string");
+            var c = text.charAt(pos++);
+            if (c == '"') return out.toString();
+            if (c != '\\') {
+                out.append(c);
+                continue;
+            }
+
+            if (pos >= text.length()) throw error("unterminated string");
+            c = text.charAt(pos++);
+            switch (c) {
+            case 'b': out.append('\b'); break;
+            case 'f': out.append('\f'); break;
+            case 'n': out.append('\n'); break;
+            case 'r': out.append('\r'); break;
+            case 't': out.append('\t'); break;
+            case 'u':
+                if (pos + 4 > text.length()) throw error("invalid escape");
+                out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                pos += 4;
+                break;
+            default:
+                out.append(c);
+            }
+        }
+    }
+
+    private Object number() {
+        var begin = pos;
+        var integer = true;
+        if (text.charAt(pos) == '-') pos++;
+        while (pos < text.length()) {
+            var c = text.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E' || c == '+' || (c == '-' && pos > begin)) {
+                integer = false;
+            } else if (c < '0' || c > '9') {
+                break;
+            }
+            pos++;
+        }
+
+        var number = text.substring(begin, pos);
+        try {
+            return integer ? (Object) Long.parseLong(number) : (Object) Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw error("invalid number '" + number + "'");
+        }
+    }
+
+    private Object literal(String literal, Object value) {
+        if (!text.startsWith(literal, pos)) throw error("unexpected character '" + text.charAt(pos) + "'");
+        pos += literal.length();
+        return value;
+    }
+
+    private boolean peek(char c) {
+        if (pos < text.length() && text.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!peek(c)) throw error("expected '" + c + "'");
+    }
+
+    private void skipSpace() {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("invalid JSON at " + pos + ": " + message);
+    }
+}
@@ -0,0 +1,167 @@
+package utils;
+
+import java.io.*;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.ByteBuffer;
+
+// Messages are sent as frames: 4-byte big-endian length + UTF-8 payload
+public class SocketPipe implements AutoCloseable {
+    public static final String DEFAULT_PATH   = "/tmp/mcsc.sock";
+    public static final int    MAX_FRAME_SIZE = 1 << 30;
+
+    public SocketChannel channel;
+
+    // 0 means blocking forever, otherwise reads and writes fail with
+    // `SocketTimeoutException` after waiting this long
+    private long     timeoutMillis = 0;
+    private Selector selector      = null;
+
+    private ByteBuffer writeHeader = ByteBuffer.allocate(4);
+    private ByteBuffer readHeader  = ByteBuffer.allocate(4);
+    private ByteBuffer buffer      = ByteBuffer.allocate(4096);
+
+    public SocketPipe(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    // The socket path can be changed with `-Dmcsc.socket=<path>`
+    public static Path path() {
+        return Paths.get(System.getProperty("mcsc.socket", DEFAULT_PATH));
+    }
+
+    // `<socket>.ready`, written by the server once it is warmed up and
+    // listening, and removed when it exits. Holds `<name>=<value>` pairs
+    public static Path readyPath(Path socketPath) {
+        return socketPath.resolveSibling(socketPath.getFileName() + ".ready");
+    }
+
+    public static void markReady(Path socketPath, String info) throws Exception {
+        var ready = readyPath(socketPath);
+        Files.writeString(ready, info + "\n");
+        ready.toFile().deleteOnExit();
+    }
+
+    public static SocketPipe connect(Path path) throws Exception {
+        return new SocketPipe(SocketChannel.open(UnixDomainSocketAddress.of(path)));
+    }
+
+    // Retries while the socket does not exist or nobody listens on it,
+    // so a client started together with the server waits for it
+    public static SocketPipe connect(Path path, long timeoutMillis) throws Exception {
+        var deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        var delayMillis = 5L;
+        while (true) {
+            try {
+                return connect(path);
+            } catch (SocketException | NoSuchFileException e) {
+                var left = (deadline - System.nanoTime()) / 1_000_000;
+                if (left <= 0) throw e;
+                Thread.sleep(Math.min(delayMillis, left));
+                delayMillis = Math.min(delayMillis * 2, 100);
+            }
+        }
+    }
+
+    public void setTimeout(long timeoutMillis) throws Exception {
+        this.timeoutMillis = timeoutMillis;
+        if (timeoutMillis > 0 && selector == null) {
+            selector = Selector.open();
+            channel.configureBlocking(false);
+            channel.register(selector, 0);
+        }
+    }
+
+    public static ServerSocketChannel listen(Path path) throws Exception {
+        // The files of a previous server are left behind if it was killed
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(readyPath(path));
+
+        var listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        listener.bind(UnixDomainSocketAddress.of(path));
+        path.toFile().deleteOnExit();
+        return listener;
+    }
+
+    public void write(String msg) throws Exception {
+        var payload = ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8));
+        writeHeader.clear();
+        writeHeader.putInt(payload.remaining());
+        writeHeader.flip();
+
+        var frame = new ByteBuffer[] { writeHeader, payload };
+        var deadline = deadline();
+        while (writeHeader.hasRemaining() || payload.hasRemaining()) {
+            if (channel.write(frame) == 0) await(SelectionKey.OP_WRITE, deadline);
+        }
+    }
+
+    // Returns `null` if the other side closed the connection
+    public String read() throws Exception {
+        var deadline = deadline();
+        readHeader.clear();
+        if (!readFully(readHeader, deadline)) return null;
+
+        var size = readHeader.flip().getInt();
+        if (size < 0 || size > MAX_FRAME_SIZE) {
+            throw new IOException("invalid frame size: " + size);
+        }
+
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+        buffer.clear().limit(size);
+        if (!readFully(buffer, deadline)) {
+            throw new EOFException("connection closed in the middle of a frame");
+        }
+
+        return new String(buffer.array(), 0, size, StandardCharsets.UTF_8);
+    }
+
+    private boolean readFully(ByteBuffer dst, long deadline) throws Exception {
+        while (dst.hasRemaining()) {
+            var n = channel.read(dst);
+            if (n < 0) {
+                if (dst.position() == 0) return false;
+                throw new EOFException("connection closed in the middle of a frame");
+            }
+            if (n == 0) await(SelectionKey.OP_READ, deadline);
+        }
+        return true;
+    }
+
+    private long deadline() {
+        return System.nanoTime() + timeoutMillis * 1_000_000;
+    }
+
+    // Only called in non-blocking mode, i.e. when a timeout was set. A
+    // timeout that was set back to 0 waits forever
+    private void await(int op, long deadline) throws Exception {
+        var key = channel.keyFor(selector);
+        key.interestOps(op);
+        if (timeoutMillis == 0) {
+            selector.select();
+            selector.selectedKeys().clear();
+            return;
+        }
+
+        var left = (deadline - System.nanoTime()) / 1_000_000;
+        if (left <= 0 || selector.select(left) == 0) {
+            throw new SocketTimeoutException(
+                "no response in " + timeoutMillis + "ms"
+            );
+        }
+        selector.selectedKeys().clear();
+    }
+
+    @Override
+    public void close() throws Exception {
+        this.channel.close();
+        if (this.selector != null) this.selector.close();
+    }
+}
@@ -3,47 +3,99 @@
 import os
 import sys
 import shutil
+import zipfile
 import argparse
 import subprocess as sp
 from threading import Thread
 from time import sleep
 
-def test_version(version, stdout=None):
-    # Build server
-    sp.run(["java", "@build.txt", version, "server"], stdout=stdout)
+SOCKET_PATH = "/tmp/mcsc.sock"
+# Written by the server once it is warmed up and listening
+READY_PATH = SOCKET_PATH + ".ready"
+
+# JVM options to start a jar with its archive, if `--cds` made one. Paths
+# are relative to the playground
+def archive(name):
+    if not os.path.exists(f"./build/bin/{name}.jsa"):
+        return []
+    return [f"-XX:SharedArchiveFile=../build/bin/{name}.jsa"]
 
-    # Setup playground
-    shutil.rmtree("./playground")
+UNKNOWN_COMMAND = b"Unknown or incomplete command, see below for error"
+
+# Files of the playground and what the client prints for them:
+# (name, client arguments, expected stdout)
+CASES = [
+    ("valid file", ["test.mcfunction"], b"success\n"),
+    ("invalid line", ["invalid.mcfunction"],
+        b"invalid.mcfunction:3: " + UNKNOWN_COMMAND + b"\n"
+        b"    sya hello<--[HERE]\n"),
+    ("zipped datapack", ["pack.zip"],
+        b"pack.zip!/data/test/function/main.mcfunction:2: " + UNKNOWN_COMMAND + b"\n"
+        b"    sya hello<--[HERE]\n"),
+]
+
+def make_playground(headless):
+    shutil.rmtree("./playground", ignore_errors=True)
     os.makedirs("./playground")
-    with open("./playground/eula.txt", "w") as f:
-        f.write("eula=true")
+    if not headless:
+        with open("./playground/eula.txt", "w") as f:
+            f.write("eula=true")
     with open("./playground/test.mcfunction", "w") as f:
         f.write("say Hello, world\nsummon pig")
+    with open("./playground/invalid.mcfunction", "w") as f:
+        f.write("say Hello, world\n\nsya hello\n")
+    with zipfile.ZipFile("./playground/pack.zip", "w") as z:
+        z.writestr("pack.mcmeta", '{"pack":{"pack_format":1,"description":"test"}}')
+        z.writestr("data/test/function/main.mcfunction", "say Hello, world\nsya hello\n")
+
+# Returns the failed cases as (name, expected, actual)
+def test_version(version, stdout=None, headless=False, cds=False):
+    # Build server
+    sp.run(["java", "@build.txt", version, "server"], stdout=stdout)
+
+    # Archives of the previous build do not fit the new jars
+    for name in ["server", "client"]:
+        if os.path.exists(f"./build/bin/{name}.jsa"):
+            os.remove(f"./build/bin/{name}.jsa")
+    if cds:
+        sp.run(["java", "@build.txt", version, "cds"], stdout=stdout)
+
+    make_playground(headless)
 
     # Launcher server
-    # TODO: The pipe may not exist
-    pipe_last_mtime = os.stat("/tmp/mcsc.pipe").st_mtime
+    for path in [SOCKET_PATH, READY_PATH]:
+        if os.path.exists(path):
+            os.remove(path)
     server = sp.Popen([
         "java",
+        *archive("server"),
+        *(["-Dmcsc.headless=true"] if headless else []),
         "-jar",
         "../build/bin/server_launcher.jar",
         "nogui"
     ], cwd="./playground", stdout=stdout)
 
-    # Wait for MCSC launch
-    while (os.stat("/tmp/mcsc.pipe").st_mtime == pipe_last_mtime):
-        pass
+    # Wait for MCSC launch, a server that stopped never gets ready
+    while not os.path.exists(READY_PATH):
+        if server.poll() is not None:
+            return [("server", b"ready", f"exited with {server.returncode}".encode())]
+        sleep(0.1)
 
     # Run client
-    client_proc = sp.run([
-        "java",
-        "-jar", "../build/bin/client.jar",
-        "./test.mcfunction"
-    ], capture_output=True, cwd="./playground")
+    failed = []
+    for name, files, expected in CASES:
+        client_proc = sp.run([
+            "java",
+            *archive("client"),
+            "-jar", "../build/bin/client.jar",
+            *files
+        ], capture_output=True, cwd="./playground")
+        if client_proc.stdout != expected:
+            failed.append((name, expected, client_proc.stdout))
 
     server.kill()
 
-    return client_proc.stdout
+    return failed
 
 parser = argparse.ArgumentParser(
         prog="Test",
@@ -51,24 +103,30 @@ parser = argparse.ArgumentParser(
 
 parser.add_argument("--version", nargs="?")
 parser.add_argument("-v", action="store_true")
+parser.add_argument("--headless", action="store_true",
+                    help="load only the command tree instead of a full server")
+parser.add_argument("--cds", action="store_true",
+                    help="make class data sharing archives and start with them")
 
 args = parser.parse_args()
 
 def verbose_test(version):
     print(f"TEST: {version}")
-    res = test_version(version)
-    if res == b"success\n":
+    failed = test_version(version, headless=args.headless, cds=args.cds)
+    for name, expected, actual in failed:
+        print(f"{name}: expected {expected!r}, got {actual!r}")
+    if not failed:
         print("TEST PASSED")
     else:
         print("TEST FAILED")
 
 def not_verbose_test(version):
     print(f"testing {version}... ", end='', flush=True)
-    res = test_version(version, sp.DEVNULL)
-    if res == b"success\n":
+    failed = test_version(version, sp.DEVNULL, headless=args.headless, cds=args.cds)
+    if not failed:
         print("passed")
     else:
-        print("failed")
+        print("failed: " + ", ".join(name for name, _, _ in failed))
 
 
 test_fn = verbose_test if args.v else not_verbose_test